@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.flow;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.util.DirScanner;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Wall time of archiving and extracting a workspace with each {@link StashManager.Codec}, as stash and unstash do.
+ * The archive size for each codec is reported alongside the stash timings, as the {@code archiveBytes} secondary result.
+ */
+@State(Scope.Benchmark)
+public class StashCodecBenchmark {
+
+    @Param({"TAR", "TAR_GZ", "TAR_GZ_FAST"})
+    public StashManager.Codec codec;
+
+    @Param({"500"})
+    public int files;
+
+    /** Bytes per file */
+    @Param({"65536"})
+    public int fileSize;
+
+    /** Reported by JMH with the results of {@link #stash} */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class ArchiveSize {
+        /** Size of the archive written by the last stash */
+        public long archiveBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            archiveBytes = 0;
+        }
+    }
+
+    private static final String[] WORDS = {"build", "stash", "node", "module", "jenkins", "pipeline", "0x7f3a", "{", "}", "return", "\n"};
+
+    private File root;
+    private FilePath workspace;
+    private File archive;
+    private File scratch;
+    private FilePath target;
+
+    @Setup
+    public void setup() throws Exception {
+        root = Files.createTempDirectory("stash-benchmark").toFile();
+        File dir = new File(root, "ws");
+        Random random = new Random(42);
+        byte[] noise = new byte[fileSize / 4];
+        for (int i = 0; i < files; i++) {
+            File f = new File(dir, "d" + (i % 10) + "/f" + i);
+            f.getParentFile().mkdirs();
+            OutputStream os = new FileOutputStream(f);
+            try {
+                // Mostly text-like content with some incompressible parts, roughly like a build tree
+                int written = 0;
+                while (written < fileSize - noise.length) {
+                    byte[] word = (WORDS[random.nextInt(WORDS.length)] + ' ').getBytes("UTF-8");
+                    os.write(word);
+                    written += word.length;
+                }
+                random.nextBytes(noise);
+                os.write(noise);
+            } finally {
+                os.close();
+            }
+        }
+        workspace = new FilePath(dir);
+        archive = new File(root, "stash" + codec.getSuffix());
+        archive(archive);
+        scratch = new File(root, "scratch" + codec.getSuffix());
+        target = new FilePath(new File(root, "target"));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        Util.deleteRecursive(root);
+    }
+
+    private int archive(File to) throws IOException, InterruptedException {
+        OutputStream os = new FileOutputStream(to);
+        try {
+            return workspace.archive(codec.archiver(), os, new DirScanner.Glob("**", null));
+        } finally {
+            os.close();
+        }
+    }
+
+    @Benchmark
+    public int stash(ArchiveSize size) throws Exception {
+        int count = archive(scratch);
+        size.archiveBytes = scratch.length();
+        return count;
+    }
+
+    @Benchmark
+    public void unstash() throws Exception {
+        new FilePath(archive).untar(target, codec.getCompression());
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.graphanalysis;
+
+import hudson.model.Action;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.graph.FlowStartNode;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heap retained by live {@link FlowNode}s, including their id, parent references and actions.
+ * Each operation builds a batch of nodes and compares the used heap after a full GC before and after,
+ * reported as the {@code retainedBytesPerNode} secondary result.
+ *
+ * <p>{@link Storage#COPY_ON_WRITE_LIST} is the baseline to compare against: the nodes get no actions,
+ * and each is paired with a {@link CopyOnWriteArrayList} of the actions, which is how nodes held them before.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FlowNodeFootprintBenchmark {
+
+    public enum Storage {
+        /** Actions held by {@link FlowNode} itself */
+        ARRAY,
+        /** Actions held in a copy-on-write list per node */
+        COPY_ON_WRITE_LIST
+    }
+
+    @Param({"ARRAY", "COPY_ON_WRITE_LIST"})
+    public Storage storage;
+
+    /** Actions added to each node: most nodes have a few */
+    @Param({"0", "1", "3"})
+    public int actionsPerNode;
+
+    /** Nodes per batch, enough to make GC noise negligible */
+    @Param({"100000"})
+    public int nodes;
+
+    /** Reported by JMH with the results of {@link #retain} */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Retained {
+        /** Heap kept reachable by the last batch, divided by its number of nodes */
+        public long retainedBytesPerNode;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            retainedBytesPerNode = 0;
+        }
+    }
+
+    private FlowNode parent;
+    private Action[] actions;
+
+    /** Keeps nothing, so that measurements are not skewed by storage */
+    static final class NonPersistentFlowExecution extends SyntheticFlowGraph.MemoryFlowExecution {
+        @Override
+        public void saveActions(FlowNode node, List<Action> actions) throws IOException {
+            // Discard
+        }
+    }
+
+    @Setup
+    public void setup() {
+        NonPersistentFlowExecution exec = new NonPersistentFlowExecution();
+        parent = new FlowStartNode(exec, "2");
+        actions = new Action[actionsPerNode];
+        for (int i = 0; i < actionsPerNode; i++) {
+            actions[i] = new SyntheticFlowGraph.BranchName("action" + i);
+        }
+    }
+
+    @Benchmark
+    public Object[] retain(Retained retained) {
+        boolean baseline = storage == Storage.COPY_ON_WRITE_LIST;
+        // Allocated up front so that it is not counted
+        Object[] held = new Object[baseline ? nodes * 2 : nodes];
+        long before = usedHeap();
+        for (int i = 0; i < nodes; i++) {
+            FlowNode node = new SyntheticFlowGraph.StepNode(parent.getExecution(), Integer.toString(i + 3), parent);
+            if (baseline) {
+                held[2 * i] = node;
+                held[2 * i + 1] = new CopyOnWriteArrayList<Action>(Arrays.asList(actions));
+            } else {
+                for (Action a : actions) {
+                    node.addAction(a);
+                }
+                held[i] = node;
+            }
+        }
+        retained.retainedBytesPerNode = (usedHeap() - before) / nodes;
+        return held;
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.graphanalysis;
+
+import org.jenkinsci.plugins.workflow.graph.FlowGraphSnapshot;
+import org.jenkinsci.plugins.workflow.graph.FlowGraphWalker;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.annotation.Nonnull;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Throughput of the scanners over a complete {@link SyntheticFlowGraph}.
+ * Each benchmark walks the whole graph from its end node, except the block hopping scanners:
+ * from the end node they would hop over the whole flow, so they start from the last node inside it.
+ */
+@State(Scope.Benchmark)
+public class FlowScannerBenchmark {
+
+    /** Atom nodes before and after each nested block */
+    @Param({"10"})
+    public int stepsPerBlock;
+
+    /** Levels of nested blocks */
+    @Param({"3", "6"})
+    public int depth;
+
+    /** Branches per nested block, 1 for plain blocks */
+    @Param({"1", "4"})
+    public int parallelWidth;
+
+    private List<FlowNode> heads;
+    /** Last node before the end, for the block hopping scanners */
+    private List<FlowNode> innerHeads;
+    private FlowGraphSnapshot snapshot;
+    private int head;
+    private int innerHead;
+
+    @Setup
+    public void setup() {
+        ForkScanner.setParallelStartPredicate(SyntheticFlowGraph.PARALLEL_START_PREDICATE);
+        SyntheticFlowGraph graph = SyntheticFlowGraph.create(stepsPerBlock, depth, parallelWidth);
+        heads = graph.getHeads();
+        innerHeads = Collections.singletonList(graph.getHead().getParents().get(0));
+        snapshot = FlowGraphSnapshot.of(graph.getExecution());
+        head = snapshot.getHeads()[0];
+        innerHead = snapshot.indexOf(innerHeads.get(0));
+    }
+
+    /** Fail the run rather than time a scan which visits nothing */
+    private static int checkVisited(@Nonnull Object scanner, int count) {
+        if (count == 0) {
+            throw new IllegalStateException(scanner.getClass().getSimpleName() + " visited no nodes");
+        }
+        return count;
+    }
+
+    private static int consumeAll(@Nonnull AbstractFlowScanner scanner, @Nonnull List<FlowNode> heads, @Nonnull Blackhole bh) {
+        scanner.setup(heads);
+        int count = 0;
+        while (scanner.hasNext()) {
+            bh.consume(scanner.next());
+            count++;
+        }
+        return checkVisited(scanner, count);
+    }
+
+    private static int consumeAll(@Nonnull AbstractSnapshotScanner scanner, @Nonnull FlowGraphSnapshot snapshot, int head, @Nonnull Blackhole bh) {
+        scanner.setup(snapshot, head);
+        int count = 0;
+        while (scanner.hasNext()) {
+            bh.consume(scanner.nextIndex());
+            count++;
+        }
+        return checkVisited(scanner, count);
+    }
+
+    @Benchmark
+    public int depthFirstScanner(Blackhole bh) {
+        return consumeAll(new DepthFirstScanner(), heads, bh);
+    }
+
+    @Benchmark
+    public int linearScanner(Blackhole bh) {
+        return consumeAll(new LinearScanner(), heads, bh);
+    }
+
+    @Benchmark
+    public int linearBlockHoppingScanner(Blackhole bh) {
+        return consumeAll(new LinearBlockHoppingScanner(), innerHeads, bh);
+    }
+
+    @Benchmark
+    public int forkScanner(Blackhole bh) {
+        return consumeAll(new ForkScanner(), heads, bh);
+    }
+
+    @Benchmark
+    public void forkScannerSimpleChunks(Blackhole bh) {
+        StandardChunkVisitor visitor = new StandardChunkVisitor();
+        ForkScanner.visitSimpleChunks(heads, visitor, new BlockChunkFinder());
+        bh.consume(visitor);
+    }
+
+    @Benchmark
+    public void flowGraphWalker(Blackhole bh) {
+        FlowGraphWalker walker = new FlowGraphWalker();
+        walker.addHeads(heads);
+        for (FlowNode f : walker) {
+            bh.consume(f);
+        }
+    }
+
+    @Benchmark
+    public void snapshotCreation(Blackhole bh) {
+        bh.consume(FlowGraphSnapshot.of(heads.get(0).getExecution(), heads));
+    }
+
+    @Benchmark
+    public int snapshotDepthFirstScanner(Blackhole bh) {
+        return consumeAll(new SnapshotDepthFirstScanner(), snapshot, head, bh);
+    }
+
+    @Benchmark
+    public int snapshotLinearBlockHoppingScanner(Blackhole bh) {
+        return consumeAll(new SnapshotLinearBlockHoppingScanner(), snapshot, innerHead, bh);
+    }
+}
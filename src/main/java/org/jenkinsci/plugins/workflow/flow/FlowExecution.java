@@ -26,6 +26,7 @@ package org.jenkinsci.plugins.workflow.flow;
 
 import com.google.common.util.concurrent.ListenableFuture;
 import hudson.Util;
+import hudson.model.Action;
 import hudson.model.Executor;
 import jenkins.model.CauseOfInterruption;
 import org.jenkinsci.plugins.workflow.actions.ErrorAction;
@@ -38,7 +39,10 @@ import hudson.security.ACL;
 import org.jenkinsci.plugins.workflow.steps.StepExecution;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import jenkins.model.Jenkins;
@@ -212,6 +216,35 @@ public abstract class FlowExecution implements FlowActionStorage {
      */
     public abstract @CheckForNull FlowNode getNode(String id) throws IOException;
 
+    /**
+     * Checks whether nodes and their actions may be loaded from several threads at once.
+     * If so, {@link #getNode}, {@link #loadActions(FlowNode)} and {@link #loadActions(Collection)} must be safe to call concurrently
+     * with one another and with the execution adding nodes, and must return fully initialized nodes.
+     * Graph scanning then may load parts of the graph in parallel,
+     * see {@link org.jenkinsci.plugins.workflow.graphanalysis.ForkScanner#setLoadBranchesConcurrently(boolean)}.
+     * @return false by default; storage supporting concurrent reads should override this
+     */
+    public boolean isConcurrentNodeLoadingSupported() {
+        return false;
+    }
+
+    /**
+     * Loads the actions of several nodes at once.
+     * Storage that can read many nodes more cheaply than one at a time (for example sequentially from one file)
+     * should override this, and {@link FlowNode#prefetchActions} will then use it when scanning the graph.
+     * <p>The default implementation just calls {@link #loadActions(FlowNode)} for each node.
+     * @param nodes nodes of this execution whose actions are wanted
+     * @return the actions of each node; nodes whose actions could not be found may be omitted
+     * @see FlowActionStorage#loadActions(FlowNode)
+     */
+    public @Nonnull Map<FlowNode, List<Action>> loadActions(@Nonnull Collection<FlowNode> nodes) throws IOException {
+        Map<FlowNode, List<Action>> actions = new HashMap<FlowNode, List<Action>>(nodes.size() * 2);
+        for (FlowNode node : nodes) {
+            actions.put(node, loadActions(node));
+        }
+        return actions;
+    }
+
     /**
      * Looks up authentication associated with this flow execution.
      * For example, if a flow is configured to be a trusted agent of a user, that would be set here.
@@ -2,37 +2,64 @@ package org.jenkinsci.plugins.workflow.flow;
 
 import com.google.common.base.Function;
 import com.google.common.collect.AbstractIterator;
+import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.inject.Inject;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.Extension;
 import hudson.ExtensionList;
 import hudson.XmlFile;
 import hudson.init.Terminator;
 import hudson.model.listeners.ItemListener;
 import hudson.remoting.SingleLaneExecutorService;
-import hudson.util.CopyOnWriteList;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 import jenkins.model.Jenkins;
 import jenkins.util.Timer;
 import org.jenkinsci.plugins.workflow.steps.StepExecution;
 import org.jenkinsci.plugins.workflow.steps.StepExecutionIterator;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static java.util.logging.Level.*;
 import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.DoNotUse;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
 
 /**
  * Tracks the running {@link FlowExecution}s so that it can be enumerated.
@@ -41,9 +68,74 @@ import org.kohsuke.accmod.restrictions.DoNotUse;
  */
 @Extension
 public class FlowExecutionList implements Iterable<FlowExecution> {
-    private CopyOnWriteList<FlowExecutionOwner> runningTasks = new CopyOnWriteList<FlowExecutionOwner>();
+    /**
+     * Registered owners. Registering and unregistering are constant time without a global lock,
+     * and iteration is weakly consistent, reflecting changes made while iterating or not.
+     * Persisted as a plain {@link List} so that the file format stays the same.
+     */
+    private final Set<FlowExecutionOwner> runningTasks = Collections.newSetFromMap(new ConcurrentHashMap<FlowExecutionOwner, Boolean>());
     private final SingleLaneExecutorService executor = new SingleLaneExecutorService(Timer.get());
     private XmlFile configFile;
+    private File journalFile;
+
+    /**
+     * Changes since the last snapshot in {@link #configFile}, appended as records of an operation byte,
+     * a length and the XML form of the {@link FlowExecutionOwner}.
+     * Only opened once something needs to be written.
+     */
+    private DataOutputStream journal;
+    private int journalRecords;
+
+    static final byte REGISTER = 1;
+    static final byte UNREGISTER = 2;
+
+    /** Number of journal records after which the journal is folded back into the XML snapshot. */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+    static int COMPACT_THRESHOLD = Integer.getInteger(FlowExecutionList.class.getName() + ".compactThreshold", 1000);
+
+    /** Sanity limit on the size of one journal record, to stop at a corrupted length. */
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    /** Executions loaded so far, held weakly so we neither keep builds in memory nor prevent them being unloaded */
+    private final ConcurrentHashMap<FlowExecutionOwner, WeakReference<FlowExecution>> loadedExecutions = new ConcurrentHashMap<FlowExecutionOwner, WeakReference<FlowExecution>>();
+
+    /** Loads started by {@link #getExecutionsAsync()} and not yet finished */
+    private final ConcurrentHashMap<FlowExecutionOwner, ListenableFuture<FlowExecution>> pendingLoads = new ConcurrentHashMap<FlowExecutionOwner, ListenableFuture<FlowExecution>>();
+
+    /** Number of executions {@link #getExecutionsAsync()} loads at once */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+    static int LOAD_CONCURRENCY = Integer.getInteger(FlowExecutionList.class.getName() + ".loadConcurrency",
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /** Runs loads for {@link #getExecutionsAsync()} */
+    private static final ExecutorService LOADER = createLoader();
+
+    /** Number of executions {@link #broadcast} handles at once */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+    static int BROADCAST_CONCURRENCY = Integer.getInteger(FlowExecutionList.class.getName() + ".broadcastConcurrency",
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /** Runs the functions passed to {@link #broadcast}, bounding how many executions are handled at once */
+    private static final ExecutorService BROADCASTER = createBroadcaster();
+
+    /** The result of the last {@link #broadcast}, for diagnostics */
+    private volatile BroadcastResult lastBroadcast;
+
+    private static ExecutorService createBroadcaster() {
+        int threads = Math.max(1, BROADCAST_CONCURRENCY);
+        ThreadPoolExecutor broadcaster = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "FlowExecutionList.broadcast"));
+        broadcaster.allowCoreThreadTimeOut(true);
+        return broadcaster;
+    }
+
+    private static ExecutorService createLoader() {
+        int threads = Math.max(1, LOAD_CONCURRENCY);
+        ThreadPoolExecutor loader = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "FlowExecutionList.load"));
+        loader.allowCoreThreadTimeOut(true);
+        return loader;
+    }
 
     public FlowExecutionList() {
         load();
@@ -60,17 +152,9 @@ public class FlowExecutionList implements Iterable<FlowExecution> {
             @Override
             protected FlowExecution computeNext() {
                 while (base.hasNext()) {
-                    FlowExecutionOwner o = base.next();
-                    try {
-                        FlowExecution e = o.get();
-                        if (e.isComplete()) {
-                            unregister(o);
-                        } else {
-                            return e;
-                        }
-                    } catch (IOException e) {
-                        LOGGER.log(WARNING, "Failed to load " + o + ". Unregistering", e);
-                        unregister(o);
+                    FlowExecution e = loadRunning(base.next());
+                    if (e != null) {
+                        return e;
                     }
                 }
                 return endOfData();
@@ -78,6 +162,248 @@ public class FlowExecutionList implements Iterable<FlowExecution> {
         };
     }
 
+    /**
+     * Load an execution, unregistering it if it is complete or cannot be loaded.
+     * @return The execution, or null if it is no longer running
+     */
+    private @CheckForNull FlowExecution loadRunning(FlowExecutionOwner o) {
+        try {
+            FlowExecution e = o.get();
+            if (e.isComplete()) {
+                unregister(o);
+            } else {
+                loadedExecutions.put(o, new WeakReference<FlowExecution>(e));
+                return e;
+            }
+        } catch (IOException e) {
+            LOGGER.log(WARNING, "Failed to load " + o + ". Unregistering", e);
+            unregister(o);
+        }
+        return null;
+    }
+
+    /** The execution of an owner if we have seen it loaded and it is still in memory, without loading it */
+    private @CheckForNull FlowExecution getIfLoaded(FlowExecutionOwner o) {
+        WeakReference<FlowExecution> ref = loadedExecutions.get(o);
+        return (ref == null) ? null : ref.get();
+    }
+
+    /**
+     * Lists the running executions which are already in memory, without loading any others.
+     * Useful for periodic tasks which only care about builds somebody else has loaded.
+     * An execution is only known to be in memory once it has been {@linkplain #register registered}
+     * or loaded through this list, such as by {@link #iterator()}, {@link #getExecutionsAsync()} or resumption at startup.
+     */
+    public @Nonnull List<FlowExecution> getLoadedExecutions() {
+        List<FlowExecution> loaded = new ArrayList<FlowExecution>();
+        for (FlowExecutionOwner o : runningTasks) {
+            FlowExecution e = getIfLoaded(o);
+            if (e != null && !e.isComplete()) {
+                loaded.add(e);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Lists all the current executions without blocking on loading them.
+     * Executions already in memory come as completed futures, the others complete once loaded in the background.
+     * As for {@link #iterator()}, executions found to be complete or failing to load are unregistered;
+     * their futures yield null.
+     */
+    public @Nonnull List<ListenableFuture<FlowExecution>> getExecutionsAsync() {
+        List<ListenableFuture<FlowExecution>> executions = new ArrayList<ListenableFuture<FlowExecution>>();
+        for (FlowExecutionOwner o : runningTasks) {
+            executions.add(loadAsync(o));
+        }
+        return executions;
+    }
+
+    private @Nonnull ListenableFuture<FlowExecution> loadAsync(final FlowExecutionOwner o) {
+        FlowExecution e = getIfLoaded(o);
+        if (e != null) {
+            if (!e.isComplete()) {
+                return Futures.immediateFuture(e);
+            }
+            unregister(o);
+            return Futures.immediateFuture(null);
+        }
+        ListenableFuture<FlowExecution> pending = pendingLoads.get(o);
+        if (pending != null) {
+            return pending;
+        }
+        final SecurityContext context = SecurityContextHolder.getContext();  // Load as the caller would have
+        ListenableFutureTask<FlowExecution> task = ListenableFutureTask.create(new Callable<FlowExecution>() {
+            @Override
+            public FlowExecution call() {
+                SecurityContext old = SecurityContextHolder.getContext();
+                SecurityContextHolder.setContext(context);
+                try {
+                    return loadRunning(o);
+                } finally {
+                    SecurityContextHolder.setContext(old);
+                    pendingLoads.remove(o);
+                }
+            }
+        });
+        pending = pendingLoads.putIfAbsent(o, task);
+        if (pending != null) {  // Somebody else started loading it meanwhile
+            return pending;
+        }
+        try {
+            LOADER.execute(task);
+        } catch (RejectedExecutionException x) {
+            task.run();
+        }
+        return task;
+    }
+
+    /**
+     * Applies a function to the current step executions of every running build.
+     * At most {@link #BROADCAST_CONCURRENCY} builds are handled at once.
+     * A build which takes longer than the timeout to load or to handle is counted as timed out,
+     * without holding up the returned future; the function is still applied to its steps if it eventually loads.
+     * Errors from the function are logged, not propagated.
+     * <p>This is for callers which would rather not wait on slow builds;
+     * {@link StepExecution#applyAll(Function)} keeps waiting for every build and reports their failures.
+     * @return a future which completes once every build has been handled, has failed or has timed out
+     */
+    public @Nonnull ListenableFuture<BroadcastResult> broadcast(final @Nonnull Function<StepExecution, Void> f, long timeout, @Nonnull TimeUnit unit) {
+        final long start = System.nanoTime();
+        final AtomicInteger steps = new AtomicInteger();
+        List<ListenableFuture<BroadcastOutcome>> outcomes = new ArrayList<ListenableFuture<BroadcastOutcome>>();
+        for (ListenableFuture<FlowExecution> execution : getExecutionsAsync()) {
+            final SettableFuture<BroadcastOutcome> outcome = SettableFuture.create();
+            outcomes.add(outcome);
+            final ScheduledFuture<?> timer = Timer.get().schedule(new Runnable() {
+                @Override public void run() {
+                    outcome.set(BroadcastOutcome.TIMED_OUT);
+                }
+            }, timeout, unit);
+            Futures.addCallback(currentExecutions(execution), new FutureCallback<List<StepExecution>>() {
+                @Override
+                public void onSuccess(List<StepExecution> result) {
+                    for (StepExecution e : result) {
+                        try {
+                            f.apply(e);
+                        } catch (RuntimeException x) {
+                            LOGGER.log(Level.WARNING, null, x);
+                        }
+                        steps.incrementAndGet();
+                    }
+                    timer.cancel(false);
+                    outcome.set(BroadcastOutcome.COMPLETED);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    LOGGER.log(Level.WARNING, null, t);
+                    timer.cancel(false);
+                    outcome.set(BroadcastOutcome.FAILED);
+                }
+            }, BROADCASTER);
+        }
+        return Futures.transform(Futures.allAsList(outcomes), new Function<List<BroadcastOutcome>, BroadcastResult>() {
+            @Override
+            public BroadcastResult apply(List<BroadcastOutcome> results) {
+                BroadcastResult r = new BroadcastResult(results, steps.get(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                lastBroadcast = r;
+                LOGGER.log(r.getTimedOut() > 0 ? WARNING : FINE, "broadcast {0}", r);
+                return r;
+            }
+        });
+    }
+
+    /** The step executions of a build once loaded, or none if it is no longer running */
+    private static ListenableFuture<List<StepExecution>> currentExecutions(ListenableFuture<FlowExecution> execution) {
+        return Futures.transform(execution, new AsyncFunction<FlowExecution, List<StepExecution>>() {
+            @Override
+            public ListenableFuture<List<StepExecution>> apply(FlowExecution e) {
+                if (e == null) {  // No longer running
+                    return Futures.immediateFuture(Collections.<StepExecution>emptyList());
+                }
+                return e.getCurrentExecutions(false);
+            }
+        });
+    }
+
+    /**
+     * The result of the last {@link #broadcast}, if any.
+     */
+    @Restricted(NoExternalUse.class)
+    public @CheckForNull BroadcastResult getLastBroadcast() {
+        return lastBroadcast;
+    }
+
+    private enum BroadcastOutcome {
+        COMPLETED, FAILED, TIMED_OUT
+    }
+
+    /**
+     * Summary of one {@link #broadcast}.
+     */
+    public static final class BroadcastResult {
+        private final int executions;
+        private final int completed;
+        private final int failed;
+        private final int timedOut;
+        private final int steps;
+        private final long durationMillis;
+
+        BroadcastResult(List<BroadcastOutcome> outcomes, int steps, long durationMillis) {
+            int completed = 0, failed = 0, timedOut = 0;
+            for (BroadcastOutcome outcome : outcomes) {
+                switch (outcome) {
+                    case COMPLETED: completed++; break;
+                    case FAILED: failed++; break;
+                    default: timedOut++;
+                }
+            }
+            this.executions = outcomes.size();
+            this.completed = completed;
+            this.failed = failed;
+            this.timedOut = timedOut;
+            this.steps = steps;
+            this.durationMillis = durationMillis;
+        }
+
+        /** Number of builds the function was broadcast to */
+        public int getExecutions() {
+            return executions;
+        }
+
+        /** Number of builds whose steps were all handled in time */
+        public int getCompleted() {
+            return completed;
+        }
+
+        /** Number of builds whose steps could not be obtained */
+        public int getFailed() {
+            return failed;
+        }
+
+        /** Number of builds which were still loading or being handled when the timeout expired */
+        public int getTimedOut() {
+            return timedOut;
+        }
+
+        /** Number of step executions the function had been applied to by the time the broadcast completed */
+        public int getSteps() {
+            return steps;
+        }
+
+        /** Wall clock time until every build was handled, failed or timed out */
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "BroadcastResult[executions=" + executions + ", completed=" + completed + ", failed=" + failed
+                    + ", timedOut=" + timedOut + ", steps=" + steps + ", durationMillis=" + durationMillis + "]";
+        }
+    }
+
     private synchronized @CheckForNull XmlFile configFile() {
         if (configFile == null) {
             Jenkins j = Jenkins.getInstance();
@@ -88,6 +414,20 @@ public class FlowExecutionList implements Iterable<FlowExecution> {
         return configFile;
     }
 
+    private synchronized @CheckForNull File journalFile() {
+        if (journalFile == null) {
+            Jenkins j = Jenkins.getInstance();
+            if (j != null) {
+                journalFile = new File(j.getRootDir(), FlowExecutionList.class.getName() + ".journal");
+            }
+        }
+        return journalFile;
+    }
+
+    /**
+     * Reads the last snapshot and then replays any journal written since, as left behind by a crash.
+     * The journal is then compacted so that new records never follow a partially written one.
+     */
     @SuppressWarnings("unchecked")
     private synchronized void load() {
         XmlFile cf = configFile();
@@ -96,11 +436,61 @@ public class FlowExecutionList implements Iterable<FlowExecution> {
         }
         if (cf.exists()) {
             try {
-                runningTasks.replaceBy((List<FlowExecutionOwner>) cf.read());
+                runningTasks.clear();
+                runningTasks.addAll((List<FlowExecutionOwner>) cf.read());
             } catch (IOException x) {
                 LOGGER.log(WARNING, null, x);
             }
         }
+        File jf = journalFile();
+        if (jf != null && jf.exists()) {
+            try {
+                replay(jf);
+            } catch (IOException x) {
+                LOGGER.log(WARNING, "failed to replay " + jf, x);
+            }
+            compact();
+        }
+    }
+
+    private void replay(File jf) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(jf)));
+        int count = 0;
+        try {
+            while (true) {
+                byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException x) {
+                    break; // clean end of journal
+                }
+                int length = in.readInt();
+                if (length < 0 || length > MAX_RECORD_SIZE || (op != REGISTER && op != UNREGISTER)) {
+                    LOGGER.log(WARNING, "ignoring corrupted journal {0} after {1} records", new Object[] {jf, count});
+                    break;
+                }
+                byte[] xml = new byte[length];
+                in.readFully(xml);
+                count++;
+                FlowExecutionOwner o;
+                try {
+                    o = (FlowExecutionOwner) Jenkins.XSTREAM2.fromXML(new String(xml, "UTF-8"));
+                } catch (RuntimeException x) { // XStreamException, ClassCastException
+                    LOGGER.log(WARNING, "skipping unreadable record in " + jf, x);
+                    continue;
+                }
+                if (op == REGISTER) {
+                    runningTasks.add(o);
+                } else {
+                    runningTasks.remove(o);
+                }
+            }
+        } catch (EOFException x) {
+            LOGGER.log(WARNING, "ignoring truncated record at the end of {0} after {1} records", new Object[] {jf, count});
+        } finally {
+            in.close();
+        }
+        LOGGER.log(FINE, "replayed {0} records from {1}", new Object[] {count, jf});
     }
 
     /**
@@ -108,43 +498,112 @@ public class FlowExecutionList implements Iterable<FlowExecution> {
      * And likewise, unregister itself after it is completed, even though this class does clean up entries that
      * are no longer running.
      */
-    public synchronized void register(final FlowExecutionOwner self) {
-        load();
-        if (!runningTasks.contains(self))
-            runningTasks.add(self);
-        saveLater();
+    public void register(final FlowExecutionOwner self) {
+        if (runningTasks.add(self)) {
+            saveLater(self);
+        }
+        // The owner registers as its execution starts, so that execution is already in memory
+        try {
+            loadedExecutions.put(self, new WeakReference<FlowExecution>(self.get()));
+        } catch (IOException x) {
+            LOGGER.log(FINE, "no execution yet for " + self, x);
+        }
     }
 
-    public synchronized void unregister(final FlowExecutionOwner self) {
-        load();
-        runningTasks.remove(self);
-        LOGGER.log(FINE, "unregistered {0} so is now {1}", new Object[] {self, runningTasks.getView()});
-        saveLater();
+    public void unregister(final FlowExecutionOwner self) {
+        loadedExecutions.remove(self);
+        if (runningTasks.remove(self)) {
+            LOGGER.log(FINE, "unregistered {0} so is now {1}", new Object[] {self, runningTasks});
+            saveLater(self);
+        }
     }
 
-    private synchronized void saveLater() {
-        final List<FlowExecutionOwner> copy = new ArrayList<FlowExecutionOwner>(runningTasks.getView());
+    private void saveLater(final FlowExecutionOwner owner) {
         try {
             executor.submit(new Runnable() {
                 @Override public void run() {
-                    save(copy);
+                    append(owner);
                 }
             });
         } catch (RejectedExecutionException x) {
             LOGGER.log(FINE, "could not schedule save, perhaps because Jenkins is shutting down; saving immediately", x);
-            save(copy);
+            append(owner);
         }
     }
-    private void save(List<FlowExecutionOwner> copy) {
+
+    /** Waits for changes made so far to be journaled, then closes the journal so that tests may look at the files */
+    void awaitJournal() throws Exception {
+        executor.submit(new Runnable() {
+            @Override public void run() {}
+        }).get();
+        closeJournal();
+    }
+
+    /**
+     * Records the current state of one owner at the end of the journal, compacting it once it gets long.
+     * Since the state is read when the record is written, not when it was changed,
+     * the last record for an owner is right even if racing changes were submitted out of order.
+     * Replaying is idempotent, so a crash between writing a snapshot and deleting the journal is harmless.
+     */
+    private synchronized void append(FlowExecutionOwner owner) {
+        byte op = runningTasks.contains(owner) ? REGISTER : UNREGISTER;
+        File jf = journalFile();
+        LOGGER.log(FINE, "journaling {0} of {1} to {2}", new Object[] {op, owner, jf});
+        if (jf == null) {
+            return; // oh well
+        }
+        try {
+            if (journal == null) {
+                journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(jf, true)));
+            }
+            byte[] xml = Jenkins.XSTREAM2.toXML(owner).getBytes("UTF-8");
+            journal.writeByte(op);
+            journal.writeInt(xml.length);
+            journal.write(xml);
+            journal.flush();
+        } catch (IOException x) {
+            LOGGER.log(WARNING, null, x);
+            closeJournal();
+            compact(); // fall back to a full snapshot
+            return;
+        }
+        if (++journalRecords >= COMPACT_THRESHOLD) {
+            compact();
+        }
+    }
+
+    /**
+     * Writes the current list as a snapshot and discards the journal.
+     */
+    private synchronized void compact() {
         XmlFile cf = configFile();
-        LOGGER.log(FINE, "saving {0} to {1}", new Object[] {copy, cf});
         if (cf == null) {
             return; // oh well
         }
+        List<FlowExecutionOwner> copy = new ArrayList<FlowExecutionOwner>(runningTasks);
+        LOGGER.log(FINE, "saving {0} to {1}", new Object[] {copy, cf});
         try {
             cf.write(copy);
         } catch (IOException x) {
             LOGGER.log(WARNING, null, x);
+            return; // keep the journal
+        }
+        closeJournal();
+        File jf = journalFile();
+        if (jf != null && jf.exists() && !jf.delete()) {
+            LOGGER.log(WARNING, "could not delete {0}", jf);
+        }
+        journalRecords = 0;
+    }
+
+    private synchronized void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException x) {
+                LOGGER.log(FINE, null, x);
+            }
+            journal = null;
         }
     }
 
@@ -164,32 +623,89 @@ public class FlowExecutionList implements Iterable<FlowExecution> {
      */
     @Extension
     public static class ItemListenerImpl extends ItemListener {
+        /** Number of builds to load at once when resuming them at startup */
+        @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+        public static int RESUME_CONCURRENCY = Integer.getInteger(FlowExecutionList.class.getName() + ".resumeConcurrency",
+                Math.min(4, Runtime.getRuntime().availableProcessors()));
+
         @Inject
         FlowExecutionList list;
 
+        /**
+         * Loads the running builds on a bounded pool, as deserializing each one can take a while,
+         * and waits for all of them so that startup still completes with every build loaded.
+         */
         @Override
         public void onLoaded() {
-            for (final FlowExecution e : list) {
-                LOGGER.log(FINE, "Eager loading {0}", e);
-                Futures.addCallback(e.getCurrentExecutions(false), new FutureCallback<List<StepExecution>>() {
-                    @Override
-                    public void onSuccess(List<StepExecution> result) {
-                        LOGGER.log(FINE, "Will resume {0}", result);
-                        for (StepExecution se : result) {
-                            se.onResume();
-                        }
-                    }
+            final List<FlowExecutionOwner> owners = new ArrayList<FlowExecutionOwner>(list.runningTasks);
+            if (owners.isEmpty()) {
+                return;
+            }
+            final int total = owners.size();
+            final int threads = Math.max(1, Math.min(RESUME_CONCURRENCY, total));
+            final int reportEvery = Math.max(1, total / 10);
+            final AtomicInteger done = new AtomicInteger();
+            final SecurityContext context = SecurityContextHolder.getContext();  // Loading must see all jobs, as the caller does
+            final long start = System.nanoTime();
+            LOGGER.log(INFO, "Loading {0} running builds using {1} threads", new Object[] {total, threads});
 
+            ExecutorService pool = Executors.newFixedThreadPool(threads, new NamingThreadFactory(new DaemonThreadFactory(), "FlowExecutionList.resume"));
+            for (final FlowExecutionOwner o : owners) {
+                pool.execute(new Runnable() {
                     @Override
-                    public void onFailure(Throwable t) {
-                        if (t instanceof CancellationException) {
-                            LOGGER.log(Level.FINE, "Cancelled load of " + e, t);
-                        } else {
-                            LOGGER.log(WARNING, "Failed to load " + e, t);
+                    public void run() {
+                        SecurityContext old = SecurityContextHolder.getContext();
+                        SecurityContextHolder.setContext(context);
+                        try {
+                            FlowExecution e = list.loadRunning(o);
+                            if (e != null) {
+                                resume(e);
+                            }
+                        } catch (RuntimeException x) {
+                            LOGGER.log(WARNING, "Failed to resume " + o, x);
+                        } finally {
+                            SecurityContextHolder.setContext(old);
+                            int count = done.incrementAndGet();
+                            if (count % reportEvery == 0 || count == total) {
+                                LOGGER.log(INFO, "Loaded {0} of {1} running builds", new Object[] {count, total});
+                            }
                         }
                     }
                 });
             }
+            pool.shutdown();
+            try {
+                while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                    LOGGER.log(INFO, "Still loading running builds: {0} of {1} done", new Object[] {done.get(), total});
+                }
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+                LOGGER.log(WARNING, "Interrupted while loading running builds, the rest continue in the background", x);
+                return;
+            }
+            LOGGER.log(INFO, "Loaded {0} running builds in {1}ms", new Object[] {total, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)});
+        }
+
+        private static void resume(final FlowExecution e) {
+            LOGGER.log(FINE, "Eager loading {0}", e);
+            Futures.addCallback(e.getCurrentExecutions(false), new FutureCallback<List<StepExecution>>() {
+                @Override
+                public void onSuccess(List<StepExecution> result) {
+                    LOGGER.log(FINE, "Will resume {0}", result);
+                    for (StepExecution se : result) {
+                        se.onResume();
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    if (t instanceof CancellationException) {
+                        LOGGER.log(Level.FINE, "Cancelled load of " + e, t);
+                    } else {
+                        LOGGER.log(WARNING, "Failed to load " + e, t);
+                    }
+                }
+            });
         }
     }
 
@@ -205,8 +721,9 @@ public class FlowExecutionList implements Iterable<FlowExecution> {
         public ListenableFuture<?> apply(final Function<StepExecution, Void> f) {
             List<ListenableFuture<?>> all = new ArrayList<ListenableFuture<?>>();
 
-            for (FlowExecution e : list) {
-                ListenableFuture<List<StepExecution>> execs = e.getCurrentExecutions(false);
+            // Do not wait for builds to be loaded, only for their step executions to be handled once they are
+            for (ListenableFuture<FlowExecution> execution : list.getExecutionsAsync()) {
+                ListenableFuture<List<StepExecution>> execs = currentExecutions(execution);
                 all.add(execs);
                 Futures.addCallback(execs,new FutureCallback<List<StepExecution>>() {
                     @Override
@@ -234,9 +751,11 @@ public class FlowExecutionList implements Iterable<FlowExecution> {
     @Restricted(DoNotUse.class)
     @Terminator public static void saveAll() throws InterruptedException {
         LOGGER.fine("ensuring all executions are saved");
-        SingleLaneExecutorService executor = get().executor;
+        FlowExecutionList list = get();
+        SingleLaneExecutorService executor = list.executor;
         executor.shutdown();
         executor.awaitTermination(1, TimeUnit.MINUTES);
+        list.compact();
     }
 
 }
@@ -26,9 +26,13 @@ package org.jenkinsci.plugins.workflow.flow;
 
 import org.jenkinsci.plugins.workflow.graph.FlowNode;
 
+import java.util.List;
+import javax.annotation.Nonnull;
+
 /**
  * @author Kohsuke Kawaguchi
  * @author Jesse Glick
+ * @see GraphListenerDispatcher
  */
 public interface GraphListener {
     /**
@@ -46,4 +50,23 @@ public interface GraphListener {
      */
     interface Synchronous extends GraphListener {}
 
+    /**
+     * Listener which receives new heads in batches, to amortize per-call overhead such as writes to an external store.
+     * Batching happens in {@link GraphListenerDispatcher}; executions which call listeners directly
+     * still call {@link #onNewHead} for each node, which should behave like a batch of one.
+     */
+    interface Batched extends GraphListener {
+        /**
+         * Receive new heads, in the order they were added.
+         * @param nodes New heads, never empty and at most {@link #getMaxBatchSize()} long
+         */
+        void onNewHeads(@Nonnull List<FlowNode> nodes);
+
+        /** Most nodes to deliver in one call */
+        int getMaxBatchSize();
+
+        /** Longest time to hold back a node while waiting for a batch to fill, in milliseconds; 0 to deliver whatever is queued right away */
+        long getMaxBatchLatencyMillis();
+    }
+
 }
@@ -0,0 +1,336 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.flow;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.Timer;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivers {@link GraphListener#onNewHead} events for a {@link FlowExecution}, for implementations to use
+ * rather than calling listeners themselves.
+ *
+ * <p>{@link GraphListener.Synchronous} listeners are called inline by {@link #fire(FlowNode)}.
+ * Every other listener gets its own bounded queue, drained on a shared pool of daemon threads,
+ * so each listener sees events in order, one at a time, while a slow listener only delays itself and never the caller.
+ * {@link GraphListener.Batched} listeners receive the queued events in lists, within the size and latency they ask for.
+ * When a listener falls so far behind that its queue is full, further events for it are dropped and counted.
+ */
+public final class GraphListenerDispatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(GraphListenerDispatcher.class.getName());
+
+    /** Maximum number of undelivered events per listener, beyond which events are dropped */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+    public static int QUEUE_CAPACITY = Integer.getInteger(GraphListenerDispatcher.class.getName() + ".queueCapacity", 10000);
+
+    /** Number of threads delivering events, shared by all dispatchers */
+    private static final int POOL_SIZE = Integer.getInteger(GraphListenerDispatcher.class.getName() + ".poolSize",
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /** Events delivered to one listener before its thread moves on to other listeners */
+    static final int MAX_DRAIN = 100;
+
+    private static final ExecutorService EXECUTOR = createExecutor();
+
+    private static ExecutorService createExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "GraphListenerDispatcher"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private final CopyOnWriteArrayList<GraphListener> synchronousListeners = new CopyOnWriteArrayList<GraphListener>();
+
+    private final CopyOnWriteArrayList<Lane> lanes = new CopyOnWriteArrayList<Lane>();
+
+    /**
+     * Register a listener, as for {@link FlowExecution#addListener}
+     * @param listener Listener to receive all subsequent events
+     */
+    public void addListener(@Nonnull GraphListener listener) {
+        if (listener instanceof GraphListener.Synchronous) {
+            synchronousListeners.add(listener);
+        } else if (listener instanceof GraphListener.Batched) {
+            lanes.add(new BatchLane((GraphListener.Batched) listener, QUEUE_CAPACITY));
+        } else {
+            lanes.add(new Lane(listener, QUEUE_CAPACITY));
+        }
+    }
+
+    /**
+     * Unregister a listener, as for {@link FlowExecution#removeListener}. Events not yet delivered to it are discarded.
+     * @param listener Listener previously added
+     */
+    public void removeListener(@Nonnull GraphListener listener) {
+        synchronousListeners.remove(listener);
+        for (Lane lane : lanes) {
+            if (lane.listener == listener) {
+                lane.removed = true;
+                lanes.remove(lane);
+            }
+        }
+    }
+
+    /**
+     * Notify all listeners of a new head. Never blocks on asynchronous listeners.
+     * @param node New head of the flow graph
+     */
+    public void fire(@Nonnull FlowNode node) {
+        for (GraphListener listener : synchronousListeners) {
+            try {
+                listener.onNewHead(node);
+            } catch (RuntimeException ex) {
+                LOGGER.log(Level.WARNING, "GraphListener " + listener + " failed on " + node, ex);
+            }
+        }
+        for (Lane lane : lanes) {
+            lane.offer(node);
+        }
+    }
+
+    /** Total number of events queued and not yet delivered, across all listeners */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Lane lane : lanes) {
+            depth += lane.queue.size();
+        }
+        return depth;
+    }
+
+    /** Total number of events dropped because a listener's queue was full, across current listeners */
+    public long getDroppedEvents() {
+        long dropped = 0;
+        for (Lane lane : lanes) {
+            dropped += lane.dropped.get();
+        }
+        return dropped;
+    }
+
+    /** How long the oldest undelivered event has been waiting, in milliseconds, 0 if every listener is up to date */
+    public long getLagMillis() {
+        long lag = 0;
+        for (Lane lane : lanes) {
+            lag = Math.max(lag, lane.getLagMillis());
+        }
+        return lag;
+    }
+
+    /**
+     * Wait until all queued events have been delivered.
+     * @return True if all were delivered, false if we timed out first
+     */
+    public boolean awaitIdle(long timeout, @Nonnull TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!isIdle()) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private boolean isIdle() {
+        for (Lane lane : lanes) {
+            if (!lane.queue.isEmpty() || lane.scheduled.get()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** A new head waiting for delivery */
+    static final class Event {
+        final FlowNode node;
+        final long queuedNanos = System.nanoTime();
+
+        Event(FlowNode node) {
+            this.node = node;
+        }
+    }
+
+    /** Queue of events for one listener, which runs on the pool whenever it has events to deliver */
+    static class Lane implements Runnable {
+        final GraphListener listener;
+        final ArrayBlockingQueue<Event> queue;
+        /** True while queued or running on the pool, so that at most one thread delivers to the listener */
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        final AtomicLong dropped = new AtomicLong();
+        volatile boolean removed;
+
+        Lane(@Nonnull GraphListener listener, int capacity) {
+            this.listener = listener;
+            this.queue = new ArrayBlockingQueue<Event>(Math.max(capacity, 1));
+        }
+
+        void offer(@Nonnull FlowNode node) {
+            if (removed) {
+                return;
+            }
+            if (queue.offer(new Event(node))) {
+                schedule();
+            } else if (dropped.incrementAndGet() == 1) {
+                LOGGER.log(Level.WARNING, "GraphListener {0} is too slow, dropping events; queue capacity is {1}", new Object[] {listener, queue.size()});
+            }
+        }
+
+        void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                EXECUTOR.execute(this);
+            }
+        }
+
+        /** Deliver some of the queued events, returning soon enough to let other lanes use the thread */
+        void drain() {
+            for (int i = 0; i < MAX_DRAIN && !removed; i++) {
+                Event event = queue.poll();
+                if (event == null) {
+                    break;
+                }
+                deliver(event.node);
+            }
+        }
+
+        long getLagMillis() {
+            Event oldest = queue.peek();
+            return (oldest == null) ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest.queuedNanos);
+        }
+
+        @Override
+        public void run() {
+            try {
+                drain();
+            } finally {
+                scheduled.set(false);
+                if (!removed && !queue.isEmpty()) {  // More to do, or events offered while we were finishing
+                    schedule();
+                }
+            }
+        }
+
+        void deliver(@Nonnull FlowNode node) {
+            try {
+                listener.onNewHead(node);
+            } catch (RuntimeException ex) {
+                LOGGER.log(Level.WARNING, "GraphListener " + listener + " failed on " + node, ex);
+            }
+        }
+    }
+
+    /** Lane for a {@link GraphListener.Batched}, which waits for a full batch or until the oldest event is as old as the listener allows */
+    static final class BatchLane extends Lane {
+        private final GraphListener.Batched batchListener;
+        private final int maxBatchSize;
+        private final long maxLatencyMillis;
+        /** True while waiting on the timer for more events to arrive */
+        private final AtomicBoolean delayed = new AtomicBoolean();
+
+        BatchLane(@Nonnull GraphListener.Batched listener, int capacity) {
+            super(listener, capacity);
+            this.batchListener = listener;
+            this.maxBatchSize = Math.max(listener.getMaxBatchSize(), 1);
+            this.maxLatencyMillis = Math.max(listener.getMaxBatchLatencyMillis(), 0);
+        }
+
+        @Override
+        void offer(@Nonnull FlowNode node) {
+            super.offer(node);
+            if (queue.size() >= maxBatchSize) {
+                runNowIfDelayed();
+            }
+        }
+
+        @Override
+        void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                // Mark the wait before checking, so an offer filling the batch meanwhile is sure to end it
+                delayed.set(true);
+                long wait = maxLatencyMillis - getLagMillis();
+                if (wait <= 0 || queue.size() >= maxBatchSize) {
+                    runNowIfDelayed();
+                } else {
+                    Timer.get().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            runNowIfDelayed();
+                        }
+                    }, wait, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+
+        /** End the wait for a fuller batch, if we are still waiting */
+        private void runNowIfDelayed() {
+            if (delayed.compareAndSet(true, false)) {
+                EXECUTOR.execute(this);
+            }
+        }
+
+        /** Whether a batch may go out now: it is full, or its oldest event has waited as long as allowed */
+        private boolean isBatchDue() {
+            return queue.size() >= maxBatchSize || (!queue.isEmpty() && getLagMillis() >= maxLatencyMillis);
+        }
+
+        /** Deliver due batches only; any remainder is left for {@link #schedule} to wait on again */
+        @Override
+        void drain() {
+            int delivered = 0;
+            while (delivered < MAX_DRAIN && !removed && isBatchDue()) {
+                List<FlowNode> batch = new ArrayList<FlowNode>(Math.min(maxBatchSize, queue.size()));
+                Event event;
+                while (batch.size() < maxBatchSize && (event = queue.poll()) != null) {
+                    batch.add(event.node);
+                }
+                if (batch.isEmpty()) {
+                    break;
+                }
+                try {
+                    batchListener.onNewHeads(Collections.unmodifiableList(batch));
+                } catch (RuntimeException ex) {
+                    LOGGER.log(Level.WARNING, "GraphListener " + listener + " failed on " + batch.size() + " new heads", ex);
+                }
+                delivered += batch.size();
+            }
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.flow;
+
+import com.google.common.collect.MapMaker;
+import hudson.Util;
+import hudson.model.Job;
+import hudson.org.apache.tools.tar.TarInputStream;
+import hudson.util.AtomicFileWriter;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import javax.annotation.Nonnull;
+import org.apache.commons.io.IOUtils;
+import org.apache.tools.tar.TarConstants;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarOutputStream;
+
+/**
+ * Content-addressed storage for stashed files, shared by all builds of a job.
+ * Each distinct file is kept once, named by its SHA-256, however many stashes refer to it.
+ * Blobs are reference counted by the {@link StashManifest}s using them and deleted once unused.
+ */
+final class StashBlobStore {
+
+    private static final Logger LOGGER = Logger.getLogger(StashBlobStore.class.getName());
+
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+
+    /** Held weakly, so that jobs no longer stashing anything, or deleted, do not keep an entry here */
+    private static final ConcurrentMap<File, StashBlobStore> STORES = new MapMaker().weakValues().makeMap();
+
+    private final File dir;
+
+    private StashBlobStore(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * There is only ever one store per directory in use at a time, so that reference counting can lock on it.
+     * Callers should only hold on to a store for the duration of an operation.
+     */
+    static @Nonnull StashBlobStore of(@Nonnull Job<?,?> job) {
+        File dir = new File(job.getRootDir(), "stash-blobs");
+        StashBlobStore store = STORES.get(dir);
+        if (store == null) {
+            StashBlobStore created = new StashBlobStore(dir);
+            store = STORES.putIfAbsent(dir, created);
+            if (store == null) {
+                store = created;
+            }
+        }
+        return store;
+    }
+
+    @Nonnull File blob(@Nonnull String hash) {
+        if (!HASH.matcher(hash).matches()) {
+            throw new IllegalArgumentException("Not a SHA-256 hash: " + hash);
+        }
+        return new File(new File(dir, hash.substring(0, 2)), hash);
+    }
+
+    boolean has(@Nonnull String hash) {
+        return blob(hash).isFile();
+    }
+
+    /**
+     * Stores the files from a tar stream.
+     * Symbolic links are stored as blobs holding their target.
+     * @return the hash of what was actually stored for each path, which may differ from what was expected if files changed meanwhile
+     */
+    @Nonnull Map<String, String> receive(@Nonnull InputStream in) throws IOException {
+        Map<String, String> hashes = new HashMap<String, String>();
+        TarInputStream tis = new TarInputStream(in);
+        TarEntry te;
+        while ((te = tis.getNextEntry()) != null) {
+            if (te.isDirectory()) {
+                continue;
+            }
+            if (te.isSymbolicLink()) {
+                hashes.put(te.getName(), put(new ByteArrayInputStream(te.getLinkName().getBytes("UTF-8"))));
+            } else {
+                hashes.put(te.getName(), put(tis));
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Stores one blob, hashing it on the way in.
+     * @return its hash
+     */
+    @Nonnull String put(@Nonnull InputStream in) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Could not create " + dir);
+        }
+        File tmp = File.createTempFile("blob", ".tmp", dir);
+        try {
+            MessageDigest digest = sha256();
+            OutputStream os = new FileOutputStream(tmp);
+            try {
+                IOUtils.copy(new DigestInputStream(in, digest), os);
+            } finally {
+                os.close();
+            }
+            String hash = Util.toHexString(digest.digest());
+            File target = blob(hash);
+            if (!target.isFile()) {
+                File parent = target.getParentFile();
+                if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+                    throw new IOException("Could not create " + parent);
+                }
+                if (!tmp.renameTo(target) && !target.isFile()) {
+                    throw new IOException("Could not rename " + tmp + " to " + target);
+                }
+            }
+            return hash;
+        } finally {
+            if (tmp.exists() && !tmp.delete()) {
+                LOGGER.log(Level.WARNING, "could not delete {0}", tmp);
+            }
+        }
+    }
+
+    /**
+     * Writes the files of a manifest out of this store as an uncompressed tar stream, closing it at the end.
+     */
+    void writeTar(@Nonnull Iterable<StashManifest.Entry> entries, @Nonnull OutputStream os) throws IOException {
+        TarOutputStream tos = new TarOutputStream(os);
+        try {
+            tos.setLongFileMode(TarOutputStream.LONGFILE_GNU);
+            for (StashManifest.Entry e : entries) {
+                TarEntry te;
+                File blob = null;
+                if (e.isSymlink()) {
+                    te = new TarEntry(e.path, TarConstants.LF_SYMLINK);
+                    te.setLinkName(e.symlinkTarget);
+                } else {
+                    blob = blob(e.hash);
+                    if (!blob.isFile()) {
+                        throw new IOException("Missing stashed content of " + e.path + " in " + dir);
+                    }
+                    te = new TarEntry(e.path);
+                    te.setSize(blob.length());
+                    if (e.mode != StashManifest.NO_MODE) {
+                        te.setMode(REGULAR_FILE | e.mode);
+                    }
+                }
+                te.setModTime(e.lastModified);
+                tos.putNextEntry(te);
+                if (blob != null) {
+                    InputStream in = new FileInputStream(blob);
+                    try {
+                        IOUtils.copy(in, tos);
+                    } finally {
+                        in.close();
+                    }
+                }
+                tos.closeEntry();
+            }
+        } finally {
+            tos.close();
+        }
+    }
+
+    /** File type bits of a regular file, as expected in the tar mode field alongside the permissions */
+    private static final int REGULAR_FILE = 0100000;
+
+    /**
+     * Counts new uses of some blobs.
+     * Done before transferring anything so that a concurrent {@link #removeReferences} cannot delete a blob we rely on.
+     */
+    synchronized void addReferences(@Nonnull Iterable<StashManifest.Entry> entries) throws IOException {
+        Map<String, Integer> refs = loadReferences();
+        for (StashManifest.Entry e : entries) {
+            Integer count = refs.get(e.hash);
+            refs.put(e.hash, count == null ? 1 : count + 1);
+        }
+        saveReferences(refs);
+    }
+
+    /**
+     * Counts blobs as no longer used by some entries, deleting any which are now unused.
+     */
+    synchronized void removeReferences(@Nonnull Iterable<StashManifest.Entry> entries) throws IOException {
+        Map<String, Integer> refs = loadReferences();
+        for (StashManifest.Entry e : entries) {
+            Integer count = refs.get(e.hash);
+            if (count == null || count <= 1) {
+                refs.remove(e.hash);
+                File blob = blob(e.hash);
+                if (blob.isFile() && !blob.delete()) {
+                    LOGGER.log(Level.WARNING, "could not delete {0}", blob);
+                }
+            } else {
+                refs.put(e.hash, count - 1);
+            }
+        }
+        saveReferences(refs);
+    }
+
+    /**
+     * Reads the number of manifest entries using each blob.
+     * Read afresh for each change rather than cached, as changes are rare next to the memory a big job's counts would hold.
+     */
+    private Map<String, Integer> loadReferences() throws IOException {
+        assert Thread.holdsLock(this);
+        Map<String, Integer> references = new HashMap<String, Integer>();
+        File f = referencesFile();
+        if (f.isFile()) {
+            BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+            try {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    int space = line.indexOf(' ');
+                    if (space != -1) {
+                        try {
+                            references.put(line.substring(0, space), Integer.valueOf(line.substring(space + 1)));
+                        } catch (NumberFormatException x) {
+                            LOGGER.log(Level.WARNING, "ignoring malformed line in {0}: {1}", new Object[] {f, line});
+                        }
+                    }
+                }
+            } finally {
+                r.close();
+            }
+        }
+        return references;
+    }
+
+    private void saveReferences(Map<String, Integer> references) throws IOException {
+        assert Thread.holdsLock(this);
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Could not create " + dir);
+        }
+        AtomicFileWriter w = new AtomicFileWriter(referencesFile(), "UTF-8");
+        try {
+            for (Map.Entry<String, Integer> e : references.entrySet()) {
+                w.write(e.getKey() + ' ' + e.getValue() + '\n');
+            }
+            w.commit();
+        } finally {
+            w.abort();
+        }
+    }
+
+    private File referencesFile() {
+        return new File(dir, "references");
+    }
+
+    static @Nonnull MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException x) {
+            throw new AssertionError(x);
+        }
+    }
+
+}
@@ -32,11 +32,19 @@ import hudson.ExtensionPoint;
 import hudson.FilePath;
 import hudson.Launcher.LocalLauncher;
 import hudson.Util;
+import hudson.model.Computer;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
 import hudson.org.apache.tools.tar.TarInputStream;
+import hudson.remoting.FastPipedInputStream;
+import hudson.remoting.FastPipedOutputStream;
+import hudson.remoting.VirtualChannel;
 import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
+import hudson.util.io.Archiver;
 import hudson.util.io.ArchiverFactory;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -44,20 +52,36 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import jenkins.MasterToSlaveFileCallable;
 import jenkins.model.ArtifactManager;
 import jenkins.model.Jenkins;
 import jenkins.util.BuildListenerAdapter;
 import jenkins.util.VirtualFile;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
 import org.apache.tools.tar.TarEntry;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.DoNotUse;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
 
 /**
  * Manages per-build stashes of files.
@@ -71,6 +95,52 @@ import org.kohsuke.accmod.restrictions.DoNotUse;
  */
 public class StashManager {
 
+    private static final Logger LOGGER = Logger.getLogger(StashManager.class.getName());
+
+    /**
+     * Whether new stashes are kept as manifests of files in a content-addressed store shared by all builds of the job,
+     * so that files already stashed by any build are neither transferred nor stored again.
+     * Otherwise each stash is a separate archive.
+     */
+    @Restricted(NoExternalUse.class)
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+    public static boolean CONTENT_ADDRESSED = Boolean.getBoolean(StashManager.class.getName() + ".contentAddressed");
+
+    /**
+     * Format of stashes which do not request one.
+     */
+    @Restricted(NoExternalUse.class)
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+    public static Codec DEFAULT_CODEC = defaultCodec();
+
+    /**
+     * Number of archives to split each stash into.
+     * They are written and extracted concurrently, so large stashes can use several cores of the agent.
+     */
+    @Restricted(NoExternalUse.class)
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+    public static int SHARDS = Integer.getInteger(StashManager.class.getName() + ".shards", 1);
+
+    /**
+     * Whether unstashing a content-addressed stash first asks the agent which files it already has,
+     * sending only the others.
+     */
+    @Restricted(NoExternalUse.class)
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+    public static boolean INCREMENTAL_UNSTASH = Boolean.getBoolean(StashManager.class.getName() + ".incrementalUnstash");
+
+    private static Codec defaultCodec() {
+        String name = System.getProperty(StashManager.class.getName() + ".codec");
+        if (name != null) {
+            try {
+                return Codec.valueOf(name);
+            } catch (IllegalArgumentException x) {
+                LOGGER.log(Level.WARNING, "unknown stash codec {0}", name);
+            }
+        }
+        return Codec.TAR_GZ_FAST;
+    }
+
     @Deprecated
     public static void stash(@Nonnull Run<?,?> build, @Nonnull String name, @Nonnull FilePath workspace, @Nonnull TaskListener listener,
                              @CheckForNull String includes, @CheckForNull String excludes) throws IOException, InterruptedException {
@@ -86,24 +156,399 @@ public class StashManager {
      * @param excludes an optional set of Ant-style file excludes
      * @param useDefaultExcludes whether to use Ant default excludes
      */
-    @SuppressFBWarnings(value="RV_RETURN_VALUE_IGNORED_BAD_PRACTICE", justification="fine if mkdirs returns false")
     public static void stash(@Nonnull Run<?,?> build, @Nonnull String name, @Nonnull FilePath workspace, @Nonnull TaskListener listener,
                              @CheckForNull String includes, @CheckForNull String excludes, boolean useDefaultExcludes) throws IOException, InterruptedException {
+        stash(build, name, workspace, listener, includes, excludes, useDefaultExcludes, null);
+    }
+
+    /**
+     * Saves a stash of some files from a build in a given format.
+     * @param codec the archive format, or null for {@link #DEFAULT_CODEC}; ignored for {@link #CONTENT_ADDRESSED} stashes
+     * @see #stash(Run, String, FilePath, TaskListener, String, String, boolean)
+     */
+    @SuppressFBWarnings(value="RV_RETURN_VALUE_IGNORED_BAD_PRACTICE", justification="fine if mkdirs returns false")
+    public static void stash(@Nonnull Run<?,?> build, @Nonnull String name, @Nonnull FilePath workspace, @Nonnull TaskListener listener,
+                             @CheckForNull String includes, @CheckForNull String excludes, boolean useDefaultExcludes, @CheckForNull Codec codec) throws IOException, InterruptedException {
         Jenkins.checkGoodName(name);
-        File storage = storage(build, name);
+        if (codec == null) {
+            codec = DEFAULT_CODEC;
+        }
+        File storage = storage(build, name, codec.getSuffix());
+        File manifest = manifest(build, name);
         storage.getParentFile().mkdirs();
-        if (storage.isFile()) {
+        if (archive(build, name) != null || manifest.isFile()) {
             listener.getLogger().println("Warning: overwriting stash ‘" + name + "’");
         }
-        OutputStream os = new FileOutputStream(storage);
+        DirScanner scanner = scanner(includes, excludes, useDefaultExcludes);
+        if (CONTENT_ADDRESSED) {
+            stashContentAddressed(build, manifest, workspace, listener, scanner, null, null);
+            discardArchives(build, name, null);
+            return;
+        }
+        if (SHARDS > 1) {
+            storage = storage(build, name, PARTS_SUFFIX);
+            int count = stashSharded(storage, workspace, scanner, codec, SHARDS);
+            listener.getLogger().println("Stashed " + count + " file(s)");
+        } else {
+            OutputStream os = new FileOutputStream(storage);
+            try {
+                int count = workspace.archive(codec.archiver(), os, scanner);
+                if (count == 0) {
+                    throw new AbortException("No files included in stash");
+                }
+                listener.getLogger().println("Stashed " + count + " file(s)");
+            } finally {
+                os.close();
+            }
+        }
+        discardArchives(build, name, storage);
+        discardManifest(build, manifest);
+    }
+
+    /**
+     * Saves a stash recording only what changed relative to another stash of the same build.
+     * Files whose size and modification time match the base are assumed unchanged without being read,
+     * and only contents not already stored are transferred.
+     * The result is a complete, content-addressed stash which {@link #unstash} restores like any other,
+     * and which does not depend on the base being kept.
+     * @param base the name of a content-addressed stash to compare against, quite possibly {@code name} itself;
+     *             if there is none, everything is hashed
+     * @see #stash(Run, String, FilePath, TaskListener, String, String, boolean)
+     */
+    @SuppressFBWarnings(value="RV_RETURN_VALUE_IGNORED_BAD_PRACTICE", justification="fine if mkdirs returns false")
+    public static void stashDelta(@Nonnull Run<?,?> build, @Nonnull String name, @Nonnull FilePath workspace, @Nonnull TaskListener listener,
+                                  @CheckForNull String includes, @CheckForNull String excludes, boolean useDefaultExcludes, @Nonnull String base) throws IOException, InterruptedException {
+        Jenkins.checkGoodName(name);
+        Jenkins.checkGoodName(base);
+        File manifest = manifest(build, name);
+        manifest.getParentFile().mkdirs();
+        File baseManifest = manifest(build, base);
+        StashManifest baseEntries = null;
+        if (baseManifest.isFile()) {
+            baseEntries = StashManifest.read(baseManifest);
+        } else {
+            listener.getLogger().println("No content-addressed stash ‘" + base + "’ to compare with; stashing all files");
+        }
+        if (!name.equals(base) && (archive(build, name) != null || manifest.isFile())) { // replacing the base is the point
+            listener.getLogger().println("Warning: overwriting stash ‘" + name + "’");
+        }
+        stashContentAddressed(build, manifest, workspace, listener, scanner(includes, excludes, useDefaultExcludes), baseEntries, base);
+        discardArchives(build, name, null);
+    }
+
+    private static DirScanner scanner(@CheckForNull String includes, @CheckForNull String excludes, boolean useDefaultExcludes) {
+        return new DirScanner.Glob(Util.fixEmpty(includes) == null ? "**" : includes, excludes, useDefaultExcludes);
+    }
+
+    /**
+     * Splits the files into shards of about equal size, then archives each concurrently into its own part in a directory.
+     * @return the number of files stashed
+     */
+    private static int stashSharded(@Nonnull File dir, final @Nonnull FilePath workspace, @Nonnull DirScanner scanner, final @Nonnull Codec codec,
+                                    int shards) throws IOException, InterruptedException {
+        List<ArrayList<String>> split = workspace.act(new SplitFiles(scanner, shards));
+        if (split.isEmpty()) {
+            throw new AbortException("No files included in stash");
+        }
+        File tmp = new File(dir.getPath() + ".tmp");
+        Util.deleteRecursive(tmp);
+        if (!tmp.mkdirs()) {
+            throw new IOException("Could not create " + tmp);
+        }
+        List<Future<Integer>> parts = new ArrayList<>();
+        int count = 0;
+        boolean success = false;
         try {
-            int count = workspace.archive(ArchiverFactory.TARGZ, os, new DirScanner.Glob(Util.fixEmpty(includes) == null ? "**" : includes, excludes, useDefaultExcludes));
-            if (count == 0) {
-                throw new AbortException("No files included in stash");
+            for (int i = 0; i < split.size(); i++) {
+                final File part = new File(tmp, i + codec.getSuffix());
+                final PathList paths = new PathList(split.get(i));
+                parts.add(Computer.threadPoolForRemoting.submit(new Callable<Integer>() {
+                    @Override public Integer call() throws IOException, InterruptedException {
+                        OutputStream os = new FileOutputStream(part);
+                        try {
+                            return workspace.archive(codec.archiver(), os, paths);
+                        } finally {
+                            os.close();
+                        }
+                    }
+                }));
+            }
+            for (Future<Integer> part : parts) {
+                count += await(part);
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                for (Future<Integer> part : parts) {
+                    part.cancel(true);
+                }
+                Util.deleteRecursive(tmp);
+            }
+        }
+        Util.deleteRecursive(dir);
+        if (!tmp.renameTo(dir)) {
+            throw new IOException("Could not rename " + tmp + " to " + dir);
+        }
+        return count;
+    }
+
+    /**
+     * Extracts all parts of a sharded stash concurrently.
+     */
+    private static void unstashSharded(@Nonnull File dir, final @Nonnull FilePath workspace) throws IOException, InterruptedException {
+        File[] parts = dir.listFiles();
+        if (parts == null) {
+            throw new IOException("Could not list " + dir);
+        }
+        List<Future<Void>> extracted = new ArrayList<>();
+        try {
+            for (final File part : parts) {
+                final Codec codec = Codec.forFileName(part.getName());
+                if (codec == null) {
+                    continue;
+                }
+                extracted.add(Computer.threadPoolForRemoting.submit(new Callable<Void>() {
+                    @Override public Void call() throws IOException, InterruptedException {
+                        new FilePath(part).untar(workspace, codec.getCompression());
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> f : extracted) {
+                await(f);
+            }
+        } finally {
+            for (Future<Void> f : extracted) {
+                f.cancel(true); // no-op unless we failed
+            }
+        }
+    }
+
+    /**
+     * Waits for a background task, rethrowing its failure.
+     */
+    private static <T> T await(@Nonnull Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException x) {
+            Throwable cause = x.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    /**
+     * Deletes archives of a stash in formats other than the one just written.
+     */
+    private static void discardArchives(@Nonnull Run<?,?> build, @Nonnull String name, @CheckForNull File keep) throws IOException {
+        for (Codec codec : Codec.values()) {
+            File f = storage(build, name, codec.getSuffix());
+            if (!f.equals(keep) && f.isFile() && !f.delete()) {
+                throw new IOException("Could not delete " + f);
+            }
+        }
+        File parts = storage(build, name, PARTS_SUFFIX);
+        if (!parts.equals(keep) && parts.isDirectory()) {
+            Util.deleteRecursive(parts);
+        }
+    }
+
+    /**
+     * Finds the archive of a stash in whatever format it was saved.
+     * @return an archive file, a directory of parts, or null
+     */
+    private static @CheckForNull File archive(@Nonnull Run<?,?> build, @Nonnull String name) {
+        for (Codec codec : Codec.values()) {
+            File f = storage(build, name, codec.getSuffix());
+            if (f.isFile()) {
+                return f;
+            }
+        }
+        File parts = storage(build, name, PARTS_SUFFIX);
+        return parts.isDirectory() ? parts : null;
+    }
+
+    /**
+     * Hashes the files on the agent, then transfers only those whose contents are not yet in the store.
+     * The new manifest takes its references before anything is transferred, and releases those of any stash it replaces only afterwards,
+     * so blobs shared with another stash are never deleted in between.
+     * Reading, replacing and releasing a manifest happens under the lock of the store, as does {@link #discardManifest}.
+     * @param base a manifest whose hashes may be reused for files with the same size and modification time
+     * @param baseName the name of {@code base}, for reporting
+     */
+    private static void stashContentAddressed(@Nonnull Run<?,?> build, @Nonnull File manifestFile, @Nonnull FilePath workspace, @Nonnull TaskListener listener,
+                                              @Nonnull DirScanner scanner, @CheckForNull StashManifest base, @CheckForNull String baseName) throws IOException, InterruptedException {
+        StashManifest manifest = workspace.act(new HashFiles(scanner, base));
+        if (manifest.getEntries().isEmpty()) {
+            throw new AbortException("No files included in stash");
+        }
+        StashBlobStore store = StashBlobStore.of(build.getParent());
+        store.addReferences(manifest.getEntries());
+        boolean success = false;
+        try {
+            Map<String,String> missing = new LinkedHashMap<String,String>(); // hash → a path with those contents
+            for (StashManifest.Entry e : manifest.getEntries()) {
+                if (!missing.containsKey(e.hash) && !store.has(e.hash)) {
+                    missing.put(e.hash, e.path);
+                }
+            }
+            if (!missing.isEmpty()) {
+                manifest = transfer(store, manifest, missing, workspace);
+            }
+            // Replace any previous manifest atomically, so concurrent stashes of the same name each release a different one
+            synchronized (store) {
+                StashManifest old = manifestFile.isFile() ? StashManifest.read(manifestFile) : null;
+                manifest.write(manifestFile);
+                success = true;
+                if (old != null) {
+                    store.removeReferences(old.getEntries());
+                }
+            }
+            if (base != null) {
+                listener.getLogger().println("Stashed " + manifest.getEntries().size() + " file(s), " + countChanged(base, manifest)
+                        + " of them changed since ‘" + baseName + "’ and " + missing.size() + " new");
+            } else {
+                listener.getLogger().println("Stashed " + manifest.getEntries().size() + " file(s), " + missing.size() + " of them new");
             }
-            listener.getLogger().println("Stashed " + count + " file(s)");
         } finally {
-            os.close();
+            if (!success) {
+                store.removeReferences(manifest.getEntries());
+            }
+        }
+    }
+
+    /**
+     * Counts files which were added or modified relative to a base.
+     */
+    private static int countChanged(@Nonnull StashManifest base, @Nonnull StashManifest manifest) {
+        Map<String,String> baseHashes = new HashMap<>();
+        for (StashManifest.Entry e : base.getEntries()) {
+            baseHashes.put(e.path, e.hash);
+        }
+        int changed = 0;
+        for (StashManifest.Entry e : manifest.getEntries()) {
+            if (!e.hash.equals(baseHashes.get(e.path))) {
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Copies some files into the store as a tar stream.
+     * @param missing paths to send, keyed by the hash expected of their contents
+     * @return the manifest, corrected for any files which changed after being hashed
+     */
+    private static StashManifest transfer(final @Nonnull StashBlobStore store, @Nonnull StashManifest manifest, @Nonnull Map<String,String> missing,
+                                          @Nonnull FilePath workspace) throws IOException, InterruptedException {
+        final FastPipedInputStream in = new FastPipedInputStream();
+        OutputStream out = new FastPipedOutputStream(in);
+        Future<Map<String,String>> receiver = Computer.threadPoolForRemoting.submit(new Callable<Map<String,String>>() {
+            @Override public Map<String,String> call() throws IOException {
+                try {
+                    Map<String,String> stored = store.receive(in);
+                    drain(in); // the end of the archive may be padded
+                    return stored;
+                } finally {
+                    in.close();
+                }
+            }
+        });
+        IOException failure = null;
+        try {
+            workspace.archive(ArchiverFactory.TAR, out, new PathList(new ArrayList<String>(missing.values())));
+        } catch (IOException x) {
+            failure = x; // perhaps only because the receiver failed, in which case report that
+        } finally {
+            out.close();
+        }
+        Map<String,String> stored;
+        try {
+            stored = receiver.get();
+        } catch (ExecutionException x) {
+            IOException x2 = new IOException("Failed to store stashed files", x.getCause());
+            if (failure != null) {
+                x2.addSuppressed(failure);
+            }
+            throw x2;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        Map<String,String> changed = new HashMap<>(); // expected hash → actual
+        for (Map.Entry<String,String> m : missing.entrySet()) {
+            String actual = stored.get(m.getValue());
+            if (actual == null) {
+                throw new IOException("Failed to transfer " + m.getValue());
+            }
+            if (!actual.equals(m.getKey())) {
+                changed.put(m.getKey(), actual);
+            }
+        }
+        if (changed.isEmpty()) {
+            return manifest;
+        }
+        List<StashManifest.Entry> entries = new ArrayList<>();
+        List<StashManifest.Entry> stale = new ArrayList<>();
+        List<StashManifest.Entry> corrected = new ArrayList<>();
+        for (StashManifest.Entry e : manifest.getEntries()) {
+            String actual = changed.get(e.hash);
+            if (actual != null) {
+                StashManifest.Entry c = e.withHash(actual, store.blob(actual).length());
+                stale.add(e);
+                corrected.add(c);
+                entries.add(c);
+            } else {
+                entries.add(e);
+            }
+        }
+        store.addReferences(corrected);
+        store.removeReferences(stale);
+        return new StashManifest(entries);
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buf = new byte[8192];
+        while (in.read(buf) != -1) {
+            // discard
+        }
+    }
+
+    /**
+     * Releases and deletes a content-addressed stash, if there is one.
+     */
+    private static void discardManifest(@Nonnull Run<?,?> build, @Nonnull File manifestFile) throws IOException {
+        StashBlobStore store = StashBlobStore.of(build.getParent());
+        synchronized (store) {
+            if (!manifestFile.isFile()) {
+                return;
+            }
+            StashManifest manifest = StashManifest.read(manifestFile);
+            if (!manifestFile.delete()) {
+                throw new IOException("Could not delete " + manifestFile);
+            }
+            store.removeReferences(manifest.getEntries());
+        }
+    }
+
+    /**
+     * Releases the content-addressed stashes of a build.
+     */
+    private static void discardManifests(@Nonnull Run<?,?> build) throws IOException {
+        File[] kids = storage(build).listFiles();
+        if (kids != null) {
+            for (File kid : kids) {
+                if (kid.getName().endsWith(StashManifest.SUFFIX)) {
+                    discardManifest(build, kid);
+                }
+            }
         }
     }
 
@@ -115,19 +560,76 @@ public class StashManager {
      */
     public static void unstash(@Nonnull Run<?,?> build, @Nonnull String name, @Nonnull FilePath workspace, @Nonnull TaskListener listener) throws IOException, InterruptedException {
         Jenkins.checkGoodName(name);
-        File storage = storage(build, name);
-        if (!storage.isFile()) {
+        File manifest = manifest(build, name);
+        if (manifest.isFile()) {
+            unstashContentAddressed(build, manifest, workspace, listener);
+            return;
+        }
+        File storage = archive(build, name);
+        if (storage == null) {
             throw new AbortException("No such saved stash ‘" + name + "’");
         }
-        new FilePath(storage).untar(workspace, FilePath.TarCompression.GZIP);
+        if (storage.isDirectory()) {
+            unstashSharded(storage, workspace);
+        } else {
+            new FilePath(storage).untar(workspace, Codec.forFileName(storage.getName()).getCompression());
+        }
         // currently nothing to print; listener is a placeholder
     }
 
+    /**
+     * Streams the files of a manifest to the workspace as a tar built on the fly, without an intermediate archive.
+     */
+    private static void unstashContentAddressed(@Nonnull Run<?,?> build, @Nonnull File manifestFile, @Nonnull FilePath workspace,
+                                                @Nonnull TaskListener listener) throws IOException, InterruptedException {
+        StashManifest manifest = StashManifest.read(manifestFile);
+        final List<StashManifest.Entry> entries;
+        if (INCREMENTAL_UNSTASH) {
+            entries = new ArrayList<>();
+            for (int index : workspace.act(new FindStale(manifest))) {
+                entries.add(manifest.getEntries().get(index));
+            }
+            listener.getLogger().println("Unstashing " + entries.size() + " file(s), " + (manifest.getEntries().size() - entries.size()) + " already up to date");
+            if (entries.isEmpty()) {
+                return;
+            }
+        } else {
+            entries = manifest.getEntries();
+        }
+        final StashBlobStore store = StashBlobStore.of(build.getParent());
+        FastPipedInputStream in = new FastPipedInputStream();
+        final OutputStream out = new FastPipedOutputStream(in);
+        Future<?> producer = Computer.threadPoolForRemoting.submit(new Callable<Void>() {
+            @Override public Void call() throws IOException {
+                store.writeTar(entries, out);
+                return null;
+            }
+        });
+        boolean success = false;
+        try {
+            // untarFrom closes its stream as soon as it has seen the end of the archive, possibly before any padding was written
+            workspace.untarFrom(new CloseShieldInputStream(in), FilePath.TarCompression.NONE);
+            drain(in);
+            success = true;
+        } finally {
+            in.close();
+            if (!success) {
+                producer.cancel(true);
+            }
+        }
+        try {
+            producer.get();
+        } catch (ExecutionException x) {
+            throw new IOException("Failed to read stashed files", x.getCause());
+        }
+    }
+
     /**
      * Delete any and all stashes in a build.
      * @param build a build possibly passed to {@link #stash} in the past
      */
     public static void clearAll(@Nonnull Run<?,?> build) throws IOException {
+        discardManifests(build);
         Util.deleteRecursive(storage(build));
     }
 
@@ -155,7 +657,38 @@ public class StashManager {
         if (!fromStorage.isDirectory()) {
             return;
         }
-        FileUtils.copyDirectory(fromStorage, storage(to));
+        File toStorage = storage(to);
+        FileUtils.copyDirectory(fromStorage, toStorage);
+        File[] kids = toStorage.listFiles();
+        if (kids != null) {
+            for (File kid : kids) {
+                if (kid.getName().endsWith(StashManifest.SUFFIX)) {
+                    copyReferences(from, to, StashManifest.read(kid));
+                }
+            }
+        }
+    }
+
+    /**
+     * Accounts for a manifest now also used by another build, copying its blobs if that build belongs to another job.
+     */
+    private static void copyReferences(@Nonnull Run<?,?> from, @Nonnull Run<?,?> to, @Nonnull StashManifest manifest) throws IOException {
+        StashBlobStore toStore = StashBlobStore.of(to.getParent());
+        toStore.addReferences(manifest.getEntries());
+        StashBlobStore fromStore = StashBlobStore.of(from.getParent());
+        if (fromStore == toStore) {
+            return;
+        }
+        for (StashManifest.Entry e : manifest.getEntries()) {
+            if (!toStore.has(e.hash)) {
+                InputStream in = new FileInputStream(fromStore.blob(e.hash));
+                try {
+                    toStore.put(in);
+                } finally {
+                    in.close();
+                }
+            }
+        }
     }
 
     @Restricted(DoNotUse.class) // currently just for tests
@@ -166,21 +699,29 @@ public class StashManager {
         if (kids != null) {
             for (File kid : kids) {
                 String n = kid.getName();
-                if (n.endsWith(SUFFIX)) {
+                Codec codec = Codec.forFileName(n);
+                if (codec != null) {
                     Map<String,String> unpacked = new TreeMap<String,String>();
-                    result.put(n.substring(0, n.length() - SUFFIX.length()), unpacked);
-                    InputStream is = new FileInputStream(kid);
-                    try {
-                        InputStream wrapped = FilePath.TarCompression.GZIP.extract(is);
-                        TarInputStream tis = new TarInputStream(wrapped);
-                        TarEntry te;
-                        while ((te = tis.getNextEntry()) != null) {
-                            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                            IOUtils.copy(tis, baos);
-                            unpacked.put(te.getName(), baos.toString());
+                    result.put(n.substring(0, n.length() - codec.getSuffix().length()), unpacked);
+                    unpack(kid, codec, unpacked);
+                } else if (n.endsWith(PARTS_SUFFIX) && kid.isDirectory()) {
+                    Map<String,String> unpacked = new TreeMap<String,String>();
+                    result.put(n.substring(0, n.length() - PARTS_SUFFIX.length()), unpacked);
+                    File[] parts = kid.listFiles();
+                    if (parts != null) {
+                        for (File part : parts) {
+                            Codec partCodec = Codec.forFileName(part.getName());
+                            if (partCodec != null) {
+                                unpack(part, partCodec, unpacked);
+                            }
                         }
-                    } finally {
-                        is.close();
+                    }
+                } else if (n.endsWith(StashManifest.SUFFIX)) {
+                    Map<String,String> unpacked = new TreeMap<String,String>();
+                    result.put(n.substring(0, n.length() - StashManifest.SUFFIX.length()), unpacked);
+                    StashBlobStore store = StashBlobStore.of(build.getParent());
+                    for (StashManifest.Entry e : StashManifest.read(kid).getEntries()) {
+                        unpacked.put(e.path, e.isSymlink() ? "" : FileUtils.readFileToString(store.blob(e.hash)));
                     }
                 }
             }
@@ -188,23 +729,296 @@ public class StashManager {
         return result;
     }
 
+    @SuppressFBWarnings(value="DM_DEFAULT_ENCODING", justification="test code")
+    private static void unpack(@Nonnull File archive, @Nonnull Codec codec, @Nonnull Map<String,String> unpacked) throws IOException {
+        InputStream is = new FileInputStream(archive);
+        try {
+            InputStream wrapped = codec.getCompression().extract(is);
+            TarInputStream tis = new TarInputStream(wrapped);
+            TarEntry te;
+            while ((te = tis.getNextEntry()) != null) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                IOUtils.copy(tis, baos);
+                unpacked.put(te.getName(), baos.toString());
+            }
+        } finally {
+            is.close();
+        }
+    }
+
     private static @Nonnull File storage(@Nonnull Run<?,?> build) {
         return new File(build.getRootDir(), "stashes");
     }
 
-    private static @Nonnull File storage(@Nonnull Run<?,?> build, @Nonnull String name) {
+    private static @Nonnull File manifest(@Nonnull Run<?,?> build, @Nonnull String name) {
+        return storage(build, name, StashManifest.SUFFIX);
+    }
+
+    private static @Nonnull File storage(@Nonnull Run<?,?> build, @Nonnull String name, @Nonnull String suffix) {
         File dir = storage(build);
-        File f = new File(dir, name + SUFFIX);
+        File f = new File(dir, name + suffix);
         if (!f.getParentFile().equals(dir)) {
             throw new IllegalArgumentException();
         }
         return f;
     }
 
-    private static final String SUFFIX = ".tar.gz";
+    /** Suffix of the directory holding the parts of a sharded stash */
+    private static final String PARTS_SUFFIX = ".parts";
 
     private StashManager() {}
 
+    /**
+     * Archive formats for stashes.
+     * The format is recognizable from the file name, so a stash can be restored whatever the default was when it was saved.
+     */
+    public enum Codec {
+        /** Uncompressed; cheapest on CPU, for contents which hardly compress or when the network is fast. */
+        TAR(".tar", FilePath.TarCompression.NONE),
+        /** Gzip at its default level, as all stashes used to be. */
+        TAR_GZ(".tar.gz", FilePath.TarCompression.GZIP),
+        /** Gzip at its fastest level: readable as {@link #TAR_GZ}, several times cheaper to write, somewhat larger. */
+        TAR_GZ_FAST(".tar.gz", FilePath.TarCompression.GZIP);
+
+        private final String suffix;
+        private final FilePath.TarCompression compression;
+
+        Codec(String suffix, FilePath.TarCompression compression) {
+            this.suffix = suffix;
+            this.compression = compression;
+        }
+
+        public @Nonnull String getSuffix() {
+            return suffix;
+        }
+
+        public @Nonnull FilePath.TarCompression getCompression() {
+            return compression;
+        }
+
+        @Nonnull ArchiverFactory archiver() {
+            switch (this) {
+                case TAR:
+                    return ArchiverFactory.TAR;
+                case TAR_GZ:
+                    return ArchiverFactory.TARGZ;
+                default:
+                    return new FastTarGzArchiverFactory();
+            }
+        }
+
+        /**
+         * Recognizes the format of a stash archive; formats sharing a suffix are read alike.
+         * @return the codec, or null if this is not an archive
+         */
+        static @CheckForNull Codec forFileName(@Nonnull String name) {
+            for (Codec codec : values()) {
+                if (name.endsWith(codec.suffix)) {
+                    return codec;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class FastTarGzArchiverFactory extends ArchiverFactory {
+        @Override public Archiver create(OutputStream out) throws IOException {
+            return ArchiverFactory.TAR.create(new FastGZIPOutputStream(new BufferedOutputStream(out)));
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class FastGZIPOutputStream extends GZIPOutputStream {
+        FastGZIPOutputStream(OutputStream out) throws IOException {
+            super(out);
+            def.setLevel(Deflater.BEST_SPEED);
+        }
+    }
+
+    /**
+     * Lists the files to stash along with the hashes of their contents.
+     */
+    private static final class HashFiles extends MasterToSlaveFileCallable<StashManifest> {
+        private final DirScanner scanner;
+        private final @CheckForNull StashManifest base;
+
+        HashFiles(DirScanner scanner, @CheckForNull StashManifest base) {
+            this.scanner = scanner;
+            this.base = base;
+        }
+
+        @Override public StashManifest invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            final List<StashManifest.Entry> entries = new ArrayList<>();
+            final Map<String,StashManifest.Entry> previous = new HashMap<>();
+            if (base != null) {
+                for (StashManifest.Entry e : base.getEntries()) {
+                    previous.put(e.path, e);
+                }
+            }
+            final byte[] buf = new byte[8192];
+            scanner.scan(dir, new FileVisitor() {
+                @Override public void visit(File f, String relativePath) throws IOException {
+                    if (f.isDirectory()) {
+                        return;
+                    }
+                    String path = relativePath.replace('\\', '/');
+                    long size = f.length();
+                    long lastModified = f.lastModified();
+                    int mode = hudson.util.IOUtils.mode(f);
+                    mode = mode == -1 ? StashManifest.NO_MODE : mode & 07777;
+                    StashManifest.Entry p = previous.get(path);
+                    if (p != null && !p.isSymlink() && p.size == size && p.lastModified == lastModified) {
+                        entries.add(new StashManifest.Entry(p.hash, size, lastModified, mode, null, path)); // assume unchanged
+                        return;
+                    }
+                    entries.add(new StashManifest.Entry(hash(f, buf), size, lastModified, mode, null, path));
+                }
+                @Override public boolean understandsSymlink() {
+                    return true;
+                }
+                @Override public void visitSymlink(File link, String target, String relativePath) throws IOException {
+                    byte[] bytes = target.getBytes("UTF-8");
+                    entries.add(new StashManifest.Entry(Util.toHexString(StashBlobStore.sha256().digest(bytes)), bytes.length, link.lastModified(),
+                            StashManifest.NO_MODE, target, relativePath.replace('\\', '/')));
+                }
+            });
+            return new StashManifest(entries);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Finds the files of a manifest which are missing from the workspace or differ from it.
+     * A file of the same size and modification time, as left by a previous unstash, is taken to be up to date;
+     * one of the same size but another time is hashed to make sure.
+     */
+    private static final class FindStale extends MasterToSlaveFileCallable<ArrayList<Integer>> {
+        private final StashManifest manifest;
+
+        FindStale(StashManifest manifest) {
+            this.manifest = manifest;
+        }
+
+        @Override public ArrayList<Integer> invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            ArrayList<Integer> stale = new ArrayList<>();
+            byte[] buf = new byte[8192];
+            List<StashManifest.Entry> entries = manifest.getEntries();
+            for (int i = 0; i < entries.size(); i++) {
+                StashManifest.Entry e = entries.get(i);
+                File f = new File(dir, e.path);
+                if (e.isSymlink()) {
+                    if (!e.symlinkTarget.equals(Util.resolveSymlink(f))) {
+                        stale.add(i);
+                    }
+                } else if (!f.isFile() || Util.isSymlink(f) || f.length() != e.size) {
+                    stale.add(i);
+                } else if (f.lastModified() / 1000 != e.lastModified / 1000 && !e.hash.equals(hash(f, buf))) { // tar keeps whole seconds
+                    stale.add(i);
+                }
+            }
+            return stale;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static String hash(File f, byte[] buf) throws IOException {
+        MessageDigest digest = StashBlobStore.sha256();
+        InputStream in = new FileInputStream(f);
+        try {
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                digest.update(buf, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+        return Util.toHexString(digest.digest());
+    }
+
+    /**
+     * Lists the files to stash and deals them into shards of about equal total size, biggest files first.
+     * Empty shards are omitted.
+     */
+    private static final class SplitFiles extends MasterToSlaveFileCallable<List<ArrayList<String>>> {
+        private final DirScanner scanner;
+        private final int shards;
+
+        SplitFiles(DirScanner scanner, int shards) {
+            this.scanner = scanner;
+            this.shards = shards;
+        }
+
+        @SuppressWarnings("unchecked") // generic array
+        @Override public List<ArrayList<String>> invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            final List<String> paths = new ArrayList<>();
+            final Map<String,Long> sizes = new HashMap<>();
+            scanner.scan(dir, new FileVisitor() {
+                @Override public void visit(File f, String relativePath) throws IOException {
+                    paths.add(relativePath);
+                    sizes.put(relativePath, f.length());
+                }
+                @Override public boolean understandsSymlink() {
+                    return true;
+                }
+                @Override public void visitSymlink(File link, String target, String relativePath) throws IOException {
+                    paths.add(relativePath);
+                    sizes.put(relativePath, 0L);
+                }
+            });
+            Collections.sort(paths, new Comparator<String>() {
+                @Override public int compare(String p1, String p2) {
+                    return sizes.get(p2).compareTo(sizes.get(p1));
+                }
+            });
+            ArrayList<String>[] split = new ArrayList[shards];
+            long[] totals = new long[shards];
+            for (String path : paths) {
+                int smallest = 0;
+                for (int i = 1; i < shards; i++) {
+                    if (totals[i] < totals[smallest]) {
+                        smallest = i;
+                    }
+                }
+                if (split[smallest] == null) {
+                    split[smallest] = new ArrayList<>();
+                }
+                split[smallest].add(path);
+                totals[smallest] += sizes.get(path);
+            }
+            List<ArrayList<String>> result = new ArrayList<>();
+            for (ArrayList<String> shard : split) {
+                if (shard != null) {
+                    result.add(shard);
+                }
+            }
+            return result;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Scans an explicit list of relative paths.
+     */
+    private static final class PathList extends DirScanner {
+        private final ArrayList<String> paths;
+
+        PathList(ArrayList<String> paths) {
+            this.paths = paths;
+        }
+
+        @Override public void scan(File dir, FileVisitor visitor) throws IOException {
+            for (String path : paths) {
+                scanSingle(new File(dir, path), path, visitor);
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
     /**
      * Extension point for customizing behavior of stashes from other plugins.
      */
@@ -221,6 +1035,23 @@ public class StashManager {
 
     }
 
+    /**
+     * Releases the blobs of stashes kept past the end of a build, such as when {@link StashBehavior#shouldClearAll} declined,
+     * once the build itself is deleted.
+     */
+    @Restricted(DoNotUse.class)
+    @Extension public static class ReleaseStashesOnDelete extends RunListener<Run<?,?>> {
+
+        @Override public void onDeleted(Run<?,?> r) {
+            try {
+                discardManifests(r);
+            } catch (IOException x) {
+                LOGGER.log(Level.WARNING, "could not release stashes of " + r, x);
+            }
+        }
+
+    }
+
     @Restricted(DoNotUse.class)
     @Extension public static class CopyStashesAndArtifacts extends FlowCopier.ByRun {
 
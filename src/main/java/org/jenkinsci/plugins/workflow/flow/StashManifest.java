@@ -0,0 +1,189 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.flow;
+
+import hudson.util.AtomicFileWriter;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Lists the files of a stash kept in a {@link StashBlobStore}.
+ * Stored as one line per file: hash, size, modification time, mode and finally the path,
+ * with backslashes and newlines in the path escaped.
+ */
+final class StashManifest implements Serializable {
+
+    static final String SUFFIX = ".manifest";
+
+    /** Mode recorded when the file system does not support POSIX permissions. */
+    static final int NO_MODE = -1;
+
+    private final List<Entry> entries;
+
+    StashManifest(@Nonnull List<Entry> entries) {
+        this.entries = Collections.unmodifiableList(new ArrayList<Entry>(entries));
+    }
+
+    @Nonnull List<Entry> getEntries() {
+        return entries;
+    }
+
+    static @Nonnull StashManifest read(@Nonnull File file) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    entries.add(Entry.parse(line, file));
+                }
+            }
+        } finally {
+            r.close();
+        }
+        return new StashManifest(entries);
+    }
+
+    void write(@Nonnull File file) throws IOException {
+        AtomicFileWriter w = new AtomicFileWriter(file, "UTF-8");
+        try {
+            for (Entry e : entries) {
+                w.write(e.toLine());
+                w.write('\n');
+            }
+            w.commit();
+        } finally {
+            w.abort();
+        }
+    }
+
+    /**
+     * One file in a stash.
+     */
+    static final class Entry implements Serializable {
+        /** Hex SHA-256 of the contents, or of the target for a symbolic link */
+        final @Nonnull String hash;
+        final long size;
+        final long lastModified;
+        /** Permission bits, or {@link #NO_MODE} */
+        final int mode;
+        /** Target if this is a symbolic link */
+        final @CheckForNull String symlinkTarget;
+        /** Relative path using forward slashes */
+        final @Nonnull String path;
+
+        Entry(@Nonnull String hash, long size, long lastModified, int mode, @CheckForNull String symlinkTarget, @Nonnull String path) {
+            this.hash = hash;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.mode = mode;
+            this.symlinkTarget = symlinkTarget;
+            this.path = path;
+        }
+
+        Entry withHash(@Nonnull String hash, long size) {
+            return new Entry(hash, size, lastModified, mode, symlinkTarget, path);
+        }
+
+        boolean isSymlink() {
+            return symlinkTarget != null;
+        }
+
+        String toLine() {
+            StringBuilder b = new StringBuilder();
+            b.append(hash).append(' ').append(size).append(' ').append(lastModified).append(' ');
+            if (isSymlink()) {
+                b.append("l:").append(escape(symlinkTarget));
+            } else {
+                b.append(mode == NO_MODE ? "-" : Integer.toOctalString(mode));
+            }
+            b.append(' ').append(escape(path));
+            return b.toString();
+        }
+
+        static Entry parse(String line, File file) throws IOException {
+            String[] parts = line.split(" ", 5);
+            if (parts.length != 5) {
+                throw new IOException("Malformed line in " + file + ": " + line);
+            }
+            try {
+                int mode = NO_MODE;
+                String symlinkTarget = null;
+                if (parts[3].startsWith("l:")) {
+                    symlinkTarget = unescape(parts[3].substring(2));
+                } else if (!parts[3].equals("-")) {
+                    mode = Integer.parseInt(parts[3], 8);
+                }
+                return new Entry(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2]), mode, symlinkTarget, unescape(parts[4]));
+            } catch (NumberFormatException x) {
+                throw new IOException("Malformed line in " + file + ": " + line, x);
+            }
+        }
+
+        @Override public String toString() {
+            return toLine();
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /** Escapes characters which would break the line format; spaces only matter in symlink targets. */
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r").replace(" ", "\\s");
+    }
+
+    private static String unescape(String s) {
+        if (s.indexOf('\\') == -1) {
+            return s;
+        }
+        StringBuilder b = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char n = s.charAt(++i);
+                switch (n) {
+                    case 'n': b.append('\n'); break;
+                    case 'r': b.append('\r'); break;
+                    case 's': b.append(' '); break;
+                    default: b.append(n);
+                }
+            } else {
+                b.append(c);
+            }
+        }
+        return b.toString();
+    }
+
+    private static final long serialVersionUID = 1L;
+}
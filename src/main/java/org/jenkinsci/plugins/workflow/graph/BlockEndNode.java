@@ -25,31 +25,98 @@
 package org.jenkinsci.plugins.workflow.graph;
 
 import java.io.IOException;
+import java.lang.ref.SoftReference;
 import org.jenkinsci.plugins.workflow.flow.FlowExecution;
 
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
 
 /**
  * End of a block.
  * @see BlockStartNode
  */
 public abstract class BlockEndNode<START extends BlockStartNode> extends FlowNode {
-    private transient START start;
+    private transient volatile START start;
+    /** Used instead of {@link #start} when {@link FlowNode#SOFT_PARENT_REFERENCES} is set */
+    private transient volatile SoftReference<START> softStart;
     private final String startId;
 
+    /**
+     * Id of the node preceding this block and any blocks immediately before it, see {@link #getJumpTargetId()}.
+     * Stored with the node so it survives restarts; null if stored before this was added, or it could not be computed.
+     */
+    private final String jumpTargetId;
+
+    /** {@link #jumpTargetId} for blocks with nothing before them */
+    private static final String NO_JUMP_TARGET = "";
+
     public BlockEndNode(FlowExecution exec, String id, START start, FlowNode... parents) {
         super(exec, id, parents);
-        this.start = start;
+        setStart(start);
         startId = start.getId();
+        jumpTargetId = computeJumpTarget(start);
     }
 
     public BlockEndNode(FlowExecution exec, String id, START start, List<FlowNode> parents) {
         super(exec, id, parents);
-        this.start = start;
+        setStart(start);
         startId = start.getId();
+        jumpTargetId = computeJumpTarget(start);
+    }
+
+    /**
+     * Find the first node before a block that is not the end of another block, following first parents.
+     * Consecutive sibling blocks each store this, so a long run of them (such as iterations of a retry loop)
+     * costs a single step to compute, and to jump over.
+     */
+    @CheckForNull
+    private static String computeJumpTarget(@Nonnull BlockStartNode start) {
+        try {
+            FlowNode candidate = start;
+            while (true) {
+                List<FlowNode> parents = candidate.getParents();
+                if (parents.isEmpty()) {
+                    return NO_JUMP_TARGET;
+                }
+                FlowNode parent = parents.get(0);
+                if (!(parent instanceof BlockEndNode)) {
+                    return parent.getId();
+                }
+                String known = ((BlockEndNode<?>) parent).jumpTargetId;
+                if (known != null) {
+                    return known;
+                }
+                candidate = ((BlockEndNode<?>) parent).getStartNode();
+            }
+        } catch (RuntimeException ex) {  // Only an optimization, never fail to create the node
+            LOGGER.log(Level.FINE, "Could not find the node preceding block " + start.getId(), ex);
+            return null;
+        }
+    }
+
+    /**
+     * Get the node a {@link org.jenkinsci.plugins.workflow.graphanalysis.LinearBlockHoppingScanner} lands on when hopping over this block:
+     * the first parent of the start node, skipping over any blocks that end there in the same way.
+     * @return Id of that node, the empty string if there is none (the block begins the flow),
+     *  or null if unknown, in which case the blocks must be walked one at a time
+     */
+    @Restricted(NoExternalUse.class)
+    @CheckForNull
+    public String getJumpTargetId() {
+        return jumpTargetId;
+    }
+
+    private void setStart(START _start) {
+        if (SOFT_PARENT_REFERENCES) {
+            softStart = new SoftReference<START>(_start);
+        } else {
+            start = _start;
+        }
     }
 
     /**
@@ -58,17 +125,24 @@ public abstract class BlockEndNode<START extends BlockStartNode> extends FlowNod
      * @throws IllegalStateException if the start node could not be reloaded after deserialization
      */
     public @Nonnull START getStartNode() {
-        if (start == null) {
+        START _start = start;
+        if (_start == null) {
+            SoftReference<START> ref = softStart;
+            _start = (ref == null) ? null : ref.get();
+        }
+        if (_start == null) {
             try {
-                start = (START) getExecution().getNode(startId);
-                if (start == null) {
+                _start = (START) getExecution().getNode(startId);
+                if (_start == null) {
                     throw new IllegalStateException("Matching start node " + startId + " lost from deserialization");
                 }
             } catch (IOException x) {
                 throw new IllegalStateException("Could not load matching start node: " + x);
             }
+            setStart(_start);
         }
-        return start;
+        return _start;
     }
 
+    private static final Logger LOGGER = Logger.getLogger(BlockEndNode.class.getName());
 }
@@ -38,6 +38,7 @@ public interface FlowActionStorage {
 
     /**
      * Service for {@link FlowNode} to load its actions.
+     * @see org.jenkinsci.plugins.workflow.flow.FlowExecution#loadActions(java.util.Collection)
      */
     List<Action> loadActions(FlowNode node) throws IOException;
 
@@ -0,0 +1,355 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.graph;
+
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Immutable, compact view of the structure of a flow graph, for analyses that need to walk it many times.
+ *
+ * <p>Each {@link FlowNode} reachable from the heads is assigned a dense integer index, and the structure is stored in primitive arrays:
+ * <ul>
+ *     <li>Parent edges, in the same order as {@link FlowNode#getParents()}</li>
+ *     <li>Block pairing: {@link BlockEndNode#getStartNode()} and the reverse mapping for {@link BlockStartNode}s</li>
+ *     <li>The {@link NodeKind} of each node</li>
+ * </ul>
+ *
+ * <p>Walking a snapshot never touches the {@link FlowNode}s themselves (no {@link FlowNode#getParents()} calls, no id-keyed hashing).
+ * Nodes are only loaded (via {@link FlowExecution#getNode(String)}) when asked for with {@link #getNode(int)}.
+ *
+ * <p>Indices are assigned in the order nodes are discovered when walking back from the heads, so the heads come first.
+ * A snapshot reflects the graph at the time it was created: new nodes added later are not visible.
+ */
+@Immutable
+public final class FlowGraphSnapshot {
+
+    /** Index returned when a node is not present (no parents, no matching block start/end, unknown id) */
+    public static final int NONE = -1;
+
+    /** Broad type of a node, as stored in the snapshot */
+    public enum NodeKind {
+        /** Anything that doesn't begin or end a block */
+        ATOM,
+        /** {@link BlockStartNode} other than the {@link FlowStartNode} */
+        BLOCK_START,
+        /** {@link BlockEndNode} other than the {@link FlowEndNode} */
+        BLOCK_END,
+        /** The {@link FlowStartNode} */
+        FLOW_START,
+        /** The {@link FlowEndNode} */
+        FLOW_END;
+
+        /** True for any {@link BlockStartNode} */
+        public boolean isBlockStart() {
+            return this == BLOCK_START || this == FLOW_START;
+        }
+
+        /** True for any {@link BlockEndNode} */
+        public boolean isBlockEnd() {
+            return this == BLOCK_END || this == FLOW_END;
+        }
+    }
+
+    private static final NodeKind[] KINDS = NodeKind.values();
+
+    private final FlowExecution execution;
+
+    /** Index to {@link FlowNode#getId()} */
+    private final String[] ids;
+
+    /** {@link FlowNode#getId()} to index */
+    private final HashMap<String, Integer> indices;
+
+    /** Offset of each node's parents within {@link #parentEdges} */
+    private final int[] parentOffsets;
+
+    /** Number of parents for each node */
+    private final int[] parentCounts;
+
+    /** Indices of parents, grouped per node */
+    private final int[] parentEdges;
+
+    /** For block ends, the index of the matching start node, otherwise {@link #NONE} */
+    private final int[] blockStarts;
+
+    /** For block starts, the index of the matching end node if one exists yet, otherwise {@link #NONE} */
+    private final int[] blockEnds;
+
+    /** {@link NodeKind} ordinal for each node */
+    private final byte[] kinds;
+
+    private final int[] heads;
+
+    private FlowGraphSnapshot(FlowExecution execution, String[] ids, HashMap<String, Integer> indices,
+                              int[] parentOffsets, int[] parentCounts, int[] parentEdges,
+                              int[] blockStarts, int[] blockEnds, byte[] kinds, int[] heads) {
+        this.execution = execution;
+        this.ids = ids;
+        this.indices = indices;
+        this.parentOffsets = parentOffsets;
+        this.parentCounts = parentCounts;
+        this.parentEdges = parentEdges;
+        this.blockStarts = blockStarts;
+        this.blockEnds = blockEnds;
+        this.kinds = kinds;
+        this.heads = heads;
+    }
+
+    /**
+     * Create a snapshot of the whole graph of an execution, starting from {@link FlowExecution#getCurrentHeads()}.
+     * @param exec Execution to snapshot
+     * @return Snapshot of all nodes reachable from the current heads
+     */
+    @Nonnull
+    public static FlowGraphSnapshot of(@Nonnull FlowExecution exec) {
+        return of(exec, exec.getCurrentHeads());
+    }
+
+    /**
+     * Create a snapshot of the part of the graph reachable from the given heads.
+     * This walks the graph once, loading every node reachable from the heads.
+     * @param exec Execution the heads belong to, used to load nodes again later
+     * @param heads Nodes to start from, these will receive the first indices
+     * @return Snapshot of all nodes reachable from the heads
+     */
+    @Nonnull
+    public static FlowGraphSnapshot of(@Nonnull FlowExecution exec, @Nonnull Collection<FlowNode> heads) {
+        Builder builder = new Builder(heads.size());
+        int[] headIndices = new int[heads.size()];
+        int i = 0;
+        for (FlowNode head : heads) {
+            headIndices[i++] = builder.indexOf(head);
+        }
+        builder.walk();
+        return builder.build(exec, headIndices);
+    }
+
+    /** Number of nodes in the snapshot */
+    public int size() {
+        return ids.length;
+    }
+
+    /** Indices of the heads this snapshot was built from */
+    @Nonnull
+    public int[] getHeads() {
+        return Arrays.copyOf(heads, heads.length);
+    }
+
+    /**
+     * Look up the index of a node by id
+     * @param id {@link FlowNode#getId()}
+     * @return Index of the node, or {@link #NONE} if not part of this snapshot
+     */
+    public int indexOf(@CheckForNull String id) {
+        Integer index = indices.get(id);
+        return (index == null) ? NONE : index;
+    }
+
+    /** Index of a node, or {@link #NONE} if not part of this snapshot */
+    public int indexOf(@CheckForNull FlowNode node) {
+        return (node == null) ? NONE : indexOf(node.getId());
+    }
+
+    /** {@link FlowNode#getId()} for the node at an index */
+    @Nonnull
+    public String getId(int index) {
+        return ids[index];
+    }
+
+    @Nonnull
+    public NodeKind getKind(int index) {
+        return KINDS[kinds[index]];
+    }
+
+    public boolean isBlockStart(int index) {
+        return getKind(index).isBlockStart();
+    }
+
+    public boolean isBlockEnd(int index) {
+        return getKind(index).isBlockEnd();
+    }
+
+    public int getParentCount(int index) {
+        return parentCounts[index];
+    }
+
+    /**
+     * Get a parent of a node
+     * @param index Node index
+     * @param parentNumber Position within {@link FlowNode#getParents()}, must be less than {@link #getParentCount(int)}
+     * @return Index of the parent
+     */
+    public int getParent(int index, int parentNumber) {
+        if (parentNumber < 0 || parentNumber >= parentCounts[index]) {
+            throw new IndexOutOfBoundsException("Node " + ids[index] + " has no parent number " + parentNumber);
+        }
+        return parentEdges[parentOffsets[index] + parentNumber];
+    }
+
+    /** First parent of a node, or {@link #NONE} if it has none */
+    public int getFirstParent(int index) {
+        return (parentCounts[index] == 0) ? NONE : parentEdges[parentOffsets[index]];
+    }
+
+    /** For block ends, index of the matching {@link BlockStartNode}, otherwise {@link #NONE} */
+    public int getBlockStart(int index) {
+        return blockStarts[index];
+    }
+
+    /** For block starts, index of the matching {@link BlockEndNode}, or {@link #NONE} if not a block start or the block is still open */
+    public int getBlockEnd(int index) {
+        return blockEnds[index];
+    }
+
+    /**
+     * Load the actual {@link FlowNode} at an index, which may require reading it from storage.
+     * @param index Node index
+     * @return Node, or null if it could not be loaded
+     */
+    @CheckForNull
+    public FlowNode getNode(int index) throws IOException {
+        return execution.getNode(ids[index]);
+    }
+
+    /** Load the {@link FlowNode}s for a series of indices, skipping any that cannot be loaded */
+    @Nonnull
+    public List<FlowNode> getNodes(@Nonnull int[] indices) throws IOException {
+        ArrayList<FlowNode> output = new ArrayList<FlowNode>(indices.length);
+        for (int index : indices) {
+            FlowNode f = getNode(index);
+            if (f != null) {
+                output.add(f);
+            }
+        }
+        return output;
+    }
+
+    /** Accumulates the graph in growable primitive arrays while walking it */
+    private static final class Builder {
+        final ArrayList<FlowNode> nodes;
+        final HashMap<String, Integer> indices;
+        int[] stack;
+        int stackSize = 0;
+
+        int[] parentOffsets;
+        int[] parentCounts;
+        int[] parentEdges;
+        int edgeCount = 0;
+        int[] blockStarts;
+
+        Builder(int expectedHeads) {
+            int capacity = Math.max(16, expectedHeads);
+            nodes = new ArrayList<FlowNode>(capacity);
+            indices = new HashMap<String, Integer>(capacity * 2);
+            stack = new int[capacity];
+            parentOffsets = new int[capacity];
+            parentCounts = new int[capacity];
+            parentEdges = new int[capacity];
+            blockStarts = new int[capacity];
+        }
+
+        /** Gets the index for a node, assigning a new one and queueing it for a visit if not seen before */
+        int indexOf(FlowNode node) {
+            Integer existing = indices.get(node.getId());
+            if (existing != null) {
+                return existing;
+            }
+            int index = nodes.size();
+            nodes.add(node);
+            indices.put(node.getId(), index);
+            if (index >= parentOffsets.length) {
+                int newSize = parentOffsets.length * 2;
+                parentOffsets = Arrays.copyOf(parentOffsets, newSize);
+                parentCounts = Arrays.copyOf(parentCounts, newSize);
+                blockStarts = Arrays.copyOf(blockStarts, newSize);
+            }
+            if (stackSize == stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            stack[stackSize++] = index;
+            return index;
+        }
+
+        void walk() {
+            while (stackSize > 0) {
+                int index = stack[--stackSize];
+                FlowNode node = nodes.get(index);
+                List<FlowNode> parents = node.getParents();
+                int parentCount = parents.size();
+                if (edgeCount + parentCount > parentEdges.length) {
+                    parentEdges = Arrays.copyOf(parentEdges, Math.max(parentEdges.length * 2, edgeCount + parentCount));
+                }
+                parentOffsets[index] = edgeCount;
+                parentCounts[index] = parentCount;
+                for (int i = 0; i < parentCount; i++) {
+                    parentEdges[edgeCount++] = indexOf(parents.get(i));
+                }
+                blockStarts[index] = (node instanceof BlockEndNode) ? indexOf(((BlockEndNode) node).getStartNode()) : NONE;
+            }
+        }
+
+        FlowGraphSnapshot build(FlowExecution exec, int[] heads) {
+            int size = nodes.size();
+            String[] ids = new String[size];
+            byte[] kinds = new byte[size];
+            int[] blockEnds = new int[size];
+            Arrays.fill(blockEnds, NONE);
+            for (int i = 0; i < size; i++) {
+                FlowNode node = nodes.get(i);
+                ids[i] = node.getId();
+                kinds[i] = (byte) kindOf(node).ordinal();
+                if (blockStarts[i] != NONE) {
+                    blockEnds[blockStarts[i]] = i;
+                }
+            }
+            return new FlowGraphSnapshot(exec, ids, indices,
+                    Arrays.copyOf(parentOffsets, size), Arrays.copyOf(parentCounts, size), Arrays.copyOf(parentEdges, edgeCount),
+                    Arrays.copyOf(blockStarts, size), blockEnds, kinds, heads);
+        }
+
+        static NodeKind kindOf(FlowNode node) {
+            if (node instanceof FlowStartNode) {
+                return NodeKind.FLOW_START;
+            } else if (node instanceof FlowEndNode) {
+                return NodeKind.FLOW_END;
+            } else if (node instanceof BlockStartNode) {
+                return NodeKind.BLOCK_START;
+            } else if (node instanceof BlockEndNode) {
+                return NodeKind.BLOCK_END;
+            }
+            return NodeKind.ATOM;
+        }
+    }
+}
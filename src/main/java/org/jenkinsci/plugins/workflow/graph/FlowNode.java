@@ -25,7 +25,10 @@
 package org.jenkinsci.plugins.workflow.graph;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.Util;
 import hudson.model.Action;
 import hudson.model.Actionable;
 import hudson.model.BallColor;
@@ -33,11 +36,17 @@ import hudson.model.Saveable;
 import hudson.search.SearchItem;
 import java.io.IOException;
 import java.io.ObjectStreamException;
+import java.lang.ref.SoftReference;
 import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Map;
+import java.util.RandomAccess;
 import java.util.logging.Level;
 import static java.util.logging.Level.*;
 import java.util.logging.Logger;
@@ -59,32 +68,76 @@ import org.kohsuke.stapler.export.ExportedBean;
  */
 @ExportedBean
 public abstract class FlowNode extends Actionable implements Saveable {
-    private transient List<FlowNode> parents;
+    /**
+     * Filled in lazily after deserialization, possibly by several threads at once, as when {@link org.jenkinsci.plugins.workflow.graphanalysis.ForkScanner}
+     * loads parallel branches concurrently: volatile, and holding an unmodifiable list, so a node's parents are safely published.
+     */
+    private transient volatile List<FlowNode> parents;
+    /** Used instead of {@link #parents} when {@link #SOFT_PARENT_REFERENCES} is set */
+    private transient volatile SoftReference<List<FlowNode>> softParents;
     private List<String> parentIds;
 
     private String id;
 
-    // this is a copy-on-write array so synchronization isn't needed between reader & writer.
+    /**
+     * Deduplicates ids on deserialization without the cost of {@link String#intern}'s global table:
+     * unreferenced ids can be collected with their nodes.
+     */
+    private static final Interner<String> IDS = Interners.newWeakInterner();
+
+    /** Shared by all nodes without actions */
+    private static final Action[] NO_ACTIONS = new Action[0];
+
+    // this is a copy-on-write array so synchronization isn't needed between reader & writer:
+    // once published an array is never modified, and changes replace it while holding the lock on this node.
+    // Null when actions are not loaded yet, which is only the case after deserialization.
     @edu.umd.cs.findbugs.annotations.SuppressWarnings("IS2_INCONSISTENT_SYNC")
-    private transient CopyOnWriteArrayList<Action> actions = new CopyOnWriteArrayList<Action>();
+    private transient volatile Action[] actions = NO_ACTIONS;
+
+    /** Last result of {@link #getPersistentAction(Class)}, only valid while {@link #actions} is the array it was computed from */
+    private transient volatile ActionLookup lastLookup;
 
     private transient final FlowExecution exec;
 
+    /**
+     * If true, changes made through {@link #getActions()} are not written immediately but coalesced by {@link PendingActionSaves},
+     * so a node modified several times in quick succession is written once.
+     * Off by default: pending changes can be lost if Jenkins dies before they are flushed.
+     */
+    @Restricted(NoExternalUse.class)
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+    public static boolean DEFER_ACTION_SAVES = Boolean.getBoolean(FlowNode.class.getName() + ".deferActionSaves");
+
+    /** Set when actions have changed but not yet been written, see {@link #DEFER_ACTION_SAVES} */
+    private transient volatile boolean dirty;
+
+    /**
+     * If true, nodes hold their parents (and {@link BlockEndNode}s their start) through soft references,
+     * reloading them from {@link FlowExecution#getNode} once collected.
+     * Otherwise a single scan of a large graph leaves every node strongly reachable from the heads for the life of the build.
+     * Off by default because collected nodes must be read back from storage when revisited.
+     */
+    @Restricted(NoExternalUse.class)
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+    public static boolean SOFT_PARENT_REFERENCES = Boolean.getBoolean(FlowNode.class.getName() + ".softParentReferences");
+
     protected FlowNode(FlowExecution exec, String id, List<FlowNode> parents) {
         this.id = id;
         this.exec = exec;
-        this.parents = ImmutableList.copyOf(parents);
-        parentIds = ids();
+        List<FlowNode> _parents = ImmutableList.copyOf(parents);
+        parentIds = ids(_parents);
+        setParents(_parents);
     }
 
     protected FlowNode(FlowExecution exec, String id, FlowNode... parents) {
         this.id = id;
         this.exec = exec;
-        this.parents = ImmutableList.copyOf(parents);
-        parentIds = ids();
+        List<FlowNode> _parents = ImmutableList.copyOf(parents);
+        parentIds = ids(_parents);
+        setParents(_parents);
     }
 
-    private List<String> ids() {
+    private static List<String> ids(List<FlowNode> parents) {
         List<String> ids = new ArrayList<String>(parents.size());
         for (FlowNode n : parents) {
             ids.add(n.id);
@@ -93,13 +146,13 @@ public abstract class FlowNode extends Actionable implements Saveable {
     }
 
     protected Object readResolve() throws ObjectStreamException {
-        // Ensure we deduplicate strings upon deserialization
+        // Ensure we deduplicate strings upon deserialization, so a node and the parentIds of its children share one copy
         if (this.id != null) {
-            this.id = this.id.intern();
+            this.id = IDS.intern(this.id);
         }
         if (parentIds != null) {
             for (int i=0; i<parentIds.size(); i++) {
-                parentIds.set(i, parentIds.get(i).intern());
+                parentIds.set(i, IDS.intern(parentIds.get(i)));
             }
         }
         return this;
@@ -131,13 +184,28 @@ public abstract class FlowNode extends Actionable implements Saveable {
 
     /**
      * Returns a read-only view of parents.
+     * Safe to call from any thread if the execution {@linkplain FlowExecution#isConcurrentNodeLoadingSupported() supports concurrent loading}.
      */
     @Nonnull
     public List<FlowNode> getParents() {
-        if (parents == null) {
-            parents = loadParents(parentIds);
+        List<FlowNode> _parents = parents;
+        if (_parents == null) {
+            SoftReference<List<FlowNode>> ref = softParents;
+            _parents = (ref == null) ? null : ref.get();
+            if (_parents == null) {
+                _parents = loadParents(parentIds);
+                setParents(_parents);
+            }
+        }
+        return _parents;
+    }
+
+    private void setParents(List<FlowNode> _parents) {
+        if (SOFT_PARENT_REFERENCES) {
+            softParents = new SoftReference<List<FlowNode>>(_parents);
+        } else {
+            parents = _parents;
         }
-        return parents;
     }
 
     @Nonnull
@@ -150,7 +218,7 @@ public abstract class FlowNode extends Actionable implements Saveable {
                 LOGGER.log(Level.WARNING, "failed to load parents of " + id, x);
             }
         }
-        return _parents;
+        return Collections.unmodifiableList(_parents);
     }
 
     @Restricted(DoNotUse.class)
@@ -263,7 +331,27 @@ public abstract class FlowNode extends Actionable implements Saveable {
      * This method provides such an opportunity for subtypes.
      */
     protected synchronized void setActions(List<Action> actions) {
-            this.actions = new CopyOnWriteArrayList<Action>(actions);
+            this.actions = toArray(actions);
+    }
+
+    private static Action[] toArray(List<Action> actions) {
+        return actions.isEmpty() ? NO_ACTIONS : actions.toArray(new Action[actions.size()]);
+    }
+
+    /**
+     * Result of the last {@link #getPersistentAction(Class)} lookup on this node, which may be null.
+     * Immutable, so a reader sees either the old or the new lookup as a whole.
+     */
+    private static final class ActionLookup {
+        final Action[] source;
+        final Class<?> type;
+        final Action result;
+
+        ActionLookup(Action[] source, Class<?> type, Action result) {
+            this.source = source;
+            this.type = type;
+            this.result = result;
+        }
     }
 
     /**
@@ -278,12 +366,23 @@ public abstract class FlowNode extends Actionable implements Saveable {
     @Restricted(NoExternalUse.class)  // Limit use to workflow-api packages until we have a case where we need the performance badly.
     public final <T extends Action> T getPersistentAction(@Nonnull Class<T> type) {
         loadActions();
-        for (Action a : actions) {
+        Action[] current = actions;
+        ActionLookup last = lastLookup;
+        if (last != null && last.source == current && last.type == type) {
+            return type.cast(last.result);
+        }
+
+        T found = null;
+        for (Action a : current) {
             if (type.isInstance(a)) {
-                return type.cast(a);
+                found = type.cast(a);
+                break;
             }
         }
-        return null;
+        if (current.length > 0) {  // Nothing to gain on nodes without actions, which are most nodes
+            lastLookup = new ActionLookup(current, type, found);
+        }
+        return found;
     }
 
     /** Split out so it can be tightly JIT compiled since the callsite cannot be overridden, benchmarked as a win */
@@ -314,16 +413,131 @@ public abstract class FlowNode extends Actionable implements Saveable {
             return;
         }
         try {
-            actions = new CopyOnWriteArrayList<Action>(exec.loadActions(this));
+            actions = toArray(exec.loadActions(this));
         } catch (IOException e) {
             LOGGER.log(WARNING, "Failed to load actions for FlowNode id=" + id, e);
-            actions = new CopyOnWriteArrayList<Action>();
+            actions = NO_ACTIONS;
+        }
+    }
+
+    /**
+     * Checks whether {@link #prefetchActions} can do better than loading actions one node at a time.
+     * @param exec an execution
+     * @return true if it overrides {@link FlowExecution#loadActions(Collection)}
+     */
+    @Restricted(NoExternalUse.class)
+    public static boolean isBulkActionLoadingSupported(@Nonnull FlowExecution exec) {
+        return Util.isOverridden(FlowExecution.class, exec.getClass(), "loadActions", Collection.class);
+    }
+
+    /**
+     * Loads the actions of a batch of nodes together using {@link FlowExecution#loadActions(Collection)},
+     * so that subsequent lookups on these nodes need no further storage reads.
+     * Nodes whose actions are already loaded are skipped.
+     * Errors are only logged: any node left unloaded simply loads its own actions when next asked.
+     * @param nodes nodes to load, possibly from several executions
+     */
+    @Restricted(NoExternalUse.class)
+    public static void prefetchActions(@Nonnull Collection<FlowNode> nodes) {
+        if (nodes instanceof RandomAccess && allActionsLoaded((List<FlowNode>) nodes)) {
+            return;  // Usual case when rescanning a graph, checked without even allocating an iterator
+        }
+        IdentityHashMap<FlowExecution, List<FlowNode>> byExecution = null;  // Only allocated if there is anything to load
+        for (FlowNode node : nodes) {
+            if (node.actions != null) {
+                continue;
+            }
+            if (byExecution == null) {
+                byExecution = new IdentityHashMap<FlowExecution, List<FlowNode>>();
+            }
+            List<FlowNode> batch = byExecution.get(node.exec);
+            if (batch == null) {
+                batch = new ArrayList<FlowNode>(nodes.size());
+                byExecution.put(node.exec, batch);
+            }
+            batch.add(node);
+        }
+        if (byExecution == null) {
+            return;
+        }
+        for (Map.Entry<FlowExecution, List<FlowNode>> entry : byExecution.entrySet()) {
+            try {
+                Map<FlowNode, List<Action>> loaded = entry.getKey().loadActions(entry.getValue());
+                for (FlowNode node : entry.getValue()) {
+                    List<Action> actions = loaded.get(node);
+                    if (actions != null) {
+                        node.setActionsIfUnloaded(actions);
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.log(FINE, "Failed to bulk load actions for " + entry.getValue().size() + " FlowNodes", e);
+            }
+        }
+    }
+
+    private static boolean allActionsLoaded(@Nonnull List<FlowNode> nodes) {
+        for (int i = 0; i < nodes.size(); i++) {
+            if (nodes.get(i).actions == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private synchronized void setActionsIfUnloaded(List<Action> loaded) {
+        if (actions == null) {
+            actions = toArray(loaded);
         }
     }
 
+    private synchronized void addActionAt(int index, Action element) {
+        Action[] old = actions;
+        if (index < 0 || index > old.length) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + old.length);
+        }
+        Action[] updated = new Action[old.length + 1];
+        System.arraycopy(old, 0, updated, 0, index);
+        updated[index] = element;
+        System.arraycopy(old, index, updated, index + 1, old.length - index);
+        actions = updated;
+    }
+
+    private synchronized Action removeActionAt(int index) {
+        Action[] old = actions;
+        Action removed = old[index];
+        if (old.length == 1) {
+            actions = NO_ACTIONS;
+        } else {
+            Action[] updated = new Action[old.length - 1];
+            System.arraycopy(old, 0, updated, 0, index);
+            System.arraycopy(old, index + 1, updated, index, old.length - index - 1);
+            actions = updated;
+        }
+        return removed;
+    }
+
+    private synchronized boolean removeAction(Object element) {
+        Action[] old = actions;
+        for (int i = 0; i < old.length; i++) {
+            if (element == null ? old[i] == null : element.equals(old[i])) {
+                removeActionAt(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized Action setActionAt(int index, Action element) {
+        Action[] updated = actions.clone();
+        Action old = updated[index];
+        updated[index] = element;
+        actions = updated;
+        return old;
+    }
+
     @Exported
     @Override
-    @SuppressFBWarnings(value = "UG_SYNC_SET_UNSYNC_GET", justification = "CopyOnWrite ArrayList, and field load & modification is synchronized")
+    @SuppressFBWarnings(value = "UG_SYNC_SET_UNSYNC_GET", justification = "Copy-on-write array, and field load & modification is synchronized")
     public List<Action> getActions() {
         loadActions();
 
@@ -337,37 +551,48 @@ public abstract class FlowNode extends Actionable implements Saveable {
 
                 @Override
                 public Action get(int index) {
-                    return actions.get(index);
+                    return actions[index];
                 }
 
                 @Override
                 public void add(int index, Action element) {
-                    actions.add(index, element);
+                    addActionAt(index, element);
                     persistSafe();
                 }
 
                 @Override
                 public Iterator<Action> iterator() {
-                    return actions.iterator();
+                    // Snapshot iterator, like CopyOnWriteArrayList: unaffected by later changes, and does not support remove
+                    return Arrays.asList(actions).iterator();
                 }
 
                 @Override
                 public Action remove(int index) {
-                    Action old = actions.remove(index);
+                    Action old = removeActionAt(index);
                     persistSafe();
                     return old;
                 }
 
+                @Override
+                public boolean remove(Object o) {
+                    // The default goes through Iterator.remove, which snapshot iterators do not support
+                    if (!removeAction(o)) {
+                        return false;
+                    }
+                    persistSafe();
+                    return true;
+                }
+
                 @Override
                 public Action set(int index, Action element) {
-                    Action old = actions.set(index, element);
+                    Action old = setActionAt(index, element);
                     persistSafe();
                     return old;
                 }
 
                 @Override
                 public int size() {
-                    return actions.size();
+                    return actions.length;
                 }
         };
     }
@@ -377,11 +602,20 @@ public abstract class FlowNode extends Actionable implements Saveable {
      * Useful when an existing {@link Action} gets updated.
      */
     public void save() throws IOException {
-        exec.saveActions(this, actions);
+        loadActions();
+        dirty = false;
+        exec.saveActions(this, new ArrayList<Action>(Arrays.asList(actions)));
     }
 
     // Persist, handling possible IOException
     private void persistSafe() {
+        if (DEFER_ACTION_SAVES) {
+            if (!dirty) {
+                dirty = true;
+                PendingActionSaves.add(this);
+            }
+            return;
+        }
         try {
             save();
         } catch (IOException e) {
@@ -389,6 +623,17 @@ public abstract class FlowNode extends Actionable implements Saveable {
         }
     }
 
+    /** Write out any changes to actions deferred by {@link #DEFER_ACTION_SAVES} */
+    void flushDeferredSave() {
+        if (dirty) {
+            try {
+                save();
+            } catch (IOException e) {
+                LOGGER.log(WARNING, "failed to save actions for FlowNode id=" + this.id, e);
+            }
+        }
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj instanceof FlowNode) {
@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013-2014, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.graph;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.init.Terminator;
+import jenkins.util.Timer;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.DoNotUse;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces writes of {@link FlowNode} actions when {@link FlowNode#DEFER_ACTION_SAVES} is enabled.
+ *
+ * <p>Modified nodes are marked dirty and queued here instead of being written on every change.
+ * Queued nodes are written periodically, whenever the {@link FlowExecution} asks for it via {@link #flush(FlowExecution)}
+ * (for example when it checkpoints its own state, or completes), and when Jenkins shuts down.
+ */
+@Restricted(NoExternalUse.class)
+public final class PendingActionSaves {
+
+    private static final Logger LOGGER = Logger.getLogger(PendingActionSaves.class.getName());
+
+    /** How often to write out pending changes, in milliseconds */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+    public static long FLUSH_INTERVAL = Long.getLong(PendingActionSaves.class.getName() + ".flushInterval", 1000);
+
+    // Identity-based, since FlowNode equality is by id and ids are only unique within one execution
+    private static final Set<FlowNode> PENDING = Collections.newSetFromMap(new IdentityHashMap<FlowNode, Boolean>());
+
+    private static final AtomicBoolean SCHEDULED = new AtomicBoolean(false);
+
+    private PendingActionSaves() {}
+
+    /** Queue a dirty node to be written later */
+    static void add(@Nonnull FlowNode node) {
+        synchronized (PENDING) {
+            PENDING.add(node);
+        }
+        if (SCHEDULED.compareAndSet(false, true)) {
+            Timer.get().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    flushAll();
+                }
+            }, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Number of nodes with unwritten changes */
+    public static int size() {
+        synchronized (PENDING) {
+            return PENDING.size();
+        }
+    }
+
+    /**
+     * Write out all pending changes for one execution.
+     * Executions should call this at points where they persist their own state, so the graph on disk is consistent with it.
+     * @param exec Execution whose nodes should be written
+     */
+    public static void flush(@Nonnull FlowExecution exec) {
+        List<FlowNode> toSave = new ArrayList<FlowNode>();
+        synchronized (PENDING) {
+            Iterator<FlowNode> it = PENDING.iterator();
+            while (it.hasNext()) {
+                FlowNode node = it.next();
+                if (node.getExecution() == exec) {
+                    toSave.add(node);
+                    it.remove();
+                }
+            }
+        }
+        save(toSave);
+    }
+
+    /** Write out all pending changes */
+    public static void flushAll() {
+        List<FlowNode> toSave;
+        synchronized (PENDING) {
+            toSave = new ArrayList<FlowNode>(PENDING);
+            PENDING.clear();
+        }
+        save(toSave);
+    }
+
+    private static void save(List<FlowNode> nodes) {
+        if (!nodes.isEmpty()) {
+            LOGGER.log(Level.FINE, "writing deferred actions for {0} FlowNodes", nodes.size());
+        }
+        for (FlowNode node : nodes) {
+            try {
+                node.flushDeferredSave();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "failed to save actions for " + node, e);
+            }
+        }
+    }
+
+    @Restricted(DoNotUse.class)
+    @Terminator public static void flushAtShutdown() {
+        LOGGER.fine("ensuring all deferred FlowNode actions are saved");
+        flushAll();
+    }
+}
@@ -32,6 +32,7 @@ import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.NotThreadSafe;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
@@ -39,6 +40,7 @@ import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
 /**
  * Core APIs and base logic for FlowScanners that extract information from a pipeline execution.
@@ -102,6 +104,22 @@ public abstract class AbstractFlowScanner implements Iterable <FlowNode>, Filter
     /** When checking for blacklist membership, we convert to a hashset when checking more than this many elements */
     protected static final int MAX_LIST_CHECK_SIZE = 5;
 
+    /**
+     * Number of upcoming nodes whose actions are loaded in one batch with {@link FlowNode#prefetchActions(Collection)}, 0 to disable.
+     * Only used when the execution supports bulk action loading.
+     */
+    static int PREFETCH_WINDOW = Integer.getInteger(AbstractFlowScanner.class.getName() + ".prefetchWindow", 64);
+
+    /** True if we should prefetch actions for the graph being scanned */
+    private boolean prefetching = false;
+
+    /** Nodes left to visit before we prefetch the next window */
+    private int prefetchCountdown = 0;
+
+    // Buffers for prefetching, retained across windows and calls to setup so steady-state scanning does not allocate them
+    private ArrayList<FlowNode> prefetchBuffer;
+    private FlowNode[] prefetchVisited;
+
     /** Helper: convert stop nodes to a collection that can efficiently be checked for membership, handling null if needed */
     @Nonnull
     protected Collection<FlowNode> convertToFastCheckable(@CheckForNull Collection<FlowNode> nodeCollection) {
@@ -128,8 +146,18 @@ public abstract class AbstractFlowScanner implements Iterable <FlowNode>, Filter
             return false;
         }
         Collection<FlowNode> fastEndNodes = convertToFastCheckable(blackList);
-        LinkedHashSet<FlowNode> filteredHeads = new LinkedHashSet<FlowNode>(heads);
-        filteredHeads.removeAll(fastEndNodes);
+        Collection<FlowNode> filteredHeads;
+        if (heads.size() == 1) {  // Common case, no need to copy and deduplicate
+            FlowNode head = (heads instanceof List) ? ((List<FlowNode>) heads).get(0) : heads.iterator().next();
+            if (fastEndNodes.contains(head)) {
+                return false;
+            }
+            filteredHeads = (heads instanceof Set || heads instanceof List) ? heads : Collections.singleton(head);
+        } else {
+            LinkedHashSet<FlowNode> headSet = new LinkedHashSet<FlowNode>(heads);
+            headSet.removeAll(fastEndNodes);
+            filteredHeads = headSet;
+        }
 
         if (filteredHeads.size() == 0) {
             return false;
@@ -138,6 +166,8 @@ public abstract class AbstractFlowScanner implements Iterable <FlowNode>, Filter
         reset();
         myBlackList = fastEndNodes;
         setHeads(filteredHeads);
+        prefetching = PREFETCH_WINDOW > 0 && FlowNode.isBulkActionLoadingSupported(filteredHeads.iterator().next().getExecution());
+        prefetchCountdown = 0;
         return true;
     }
 
@@ -208,10 +238,61 @@ public abstract class AbstractFlowScanner implements Iterable <FlowNode>, Filter
         }
 
         myCurrent = myNext;
+        if (prefetching && --prefetchCountdown <= 0) {
+            if (prefetchBuffer == null) {
+                prefetchBuffer = new ArrayList<FlowNode>(PREFETCH_WINDOW);
+            }
+            ArrayList<FlowNode> window = prefetchBuffer;
+            collectPrefetchWindow(myCurrent, PREFETCH_WINDOW, window);
+            FlowNode.prefetchActions(window);
+            prefetchCountdown = window.size();
+            window.clear();
+        }
         myNext = next(myCurrent, myBlackList);
         return myCurrent;
     }
 
+    /**
+     * Collect the nodes we are likely to visit next, so their actions can be loaded in one batch.
+     * By default this is a breadth-first walk of parents, stopping at {@link #myBlackList}.
+     * Implementations visiting fewer nodes should override this to avoid loading actions they will never need.
+     * @param current Node we are about to visit, which should be included
+     * @param maxNodes Maximum number of nodes to collect
+     * @param output Collection to add nodes to
+     */
+    protected void collectPrefetchWindow(@Nonnull FlowNode current, int maxNodes, @Nonnull Collection<FlowNode> output) {
+        // Breadth-first queue that doubles as the visited set: entries before tail were all reached, those before head are dequeued.
+        // The window is small, so checking it by identity is cheaper than hashing and needs no allocation per node.
+        if (prefetchVisited == null || prefetchVisited.length < maxNodes) {
+            prefetchVisited = new FlowNode[maxNodes];
+        }
+        FlowNode[] visited = prefetchVisited;
+        int head = 0;
+        int tail = 0;
+        visited[tail++] = current;
+        while (head < tail && output.size() < maxNodes) {
+            FlowNode f = visited[head++];
+            output.add(f);
+            List<FlowNode> parents = f.getParents();
+            for (int i = 0; i < parents.size() && tail < maxNodes; i++) {
+                FlowNode p = parents.get(i);
+                if (!myBlackList.contains(p) && !contains(visited, tail, p)) {
+                    visited[tail++] = p;
+                }
+            }
+        }
+        Arrays.fill(visited, 0, tail, null);  // Do not retain nodes between windows
+    }
+
+    private static boolean contains(@Nonnull FlowNode[] nodes, int length, @Nonnull FlowNode node) {
+        for (int i = 0; i < length; i++) {
+            if (nodes[i] == node) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public final void remove() {
         throw new UnsupportedOperationException("FlowGraphs are immutable, so FlowScanners can't remove nodes");
@@ -0,0 +1,200 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.graphanalysis;
+
+import org.jenkinsci.plugins.workflow.graph.FlowGraphSnapshot;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.NoSuchElementException;
+
+/**
+ * Base logic for scanners that walk a {@link FlowGraphSnapshot} by node index rather than through {@link FlowNode}s.
+ *
+ * <p>These mirror the iteration orders of the {@link AbstractFlowScanner} implementations, but never load {@link FlowNode}s
+ * or call {@link FlowNode#getParents()}: use {@link FlowGraphSnapshot#getNode(int)} for the nodes you actually need.
+ *
+ * <p>Usage is analogous to {@link AbstractFlowScanner}: call one of the setup methods, then use {@link #hasNext()} and {@link #nextIndex()},
+ * or use {@link #visitAll(FlowGraphSnapshot, SnapshotNodeVisitor)} and {@link #filteredIndices(FlowGraphSnapshot, int[], int[], SnapshotNodeVisitor)}.
+ * Scanners can be reused: internal buffers are retained between setups.
+ *
+ * <em>Implementations are NOT threadsafe, but the snapshots themselves are and may be scanned concurrently by separate scanners.</em>
+ */
+@NotThreadSafe
+public abstract class AbstractSnapshotScanner {
+
+    protected FlowGraphSnapshot mySnapshot;
+
+    protected int myCurrent = FlowGraphSnapshot.NONE;
+
+    protected int myNext = FlowGraphSnapshot.NONE;
+
+    /** Indices that may not be visited or walked past */
+    protected final BitSet myBlackList = new BitSet();
+
+    /**
+     * Set up for iteration over a snapshot
+     * @param snapshot Snapshot to walk
+     * @param heads Indices to start walking from
+     * @param blackList Indices we may not visit or walk past, may be empty
+     * @return True if there are nodes to visit, otherwise false
+     */
+    public boolean setup(@Nonnull FlowGraphSnapshot snapshot, @Nonnull int[] heads, @Nonnull int[] blackList) {
+        reset();
+        mySnapshot = snapshot;
+        for (int i : blackList) {
+            if (i != FlowGraphSnapshot.NONE) {
+                myBlackList.set(i);
+            }
+        }
+        int[] filteredHeads = new int[heads.length];
+        int count = 0;
+        for (int i : heads) {
+            if (i != FlowGraphSnapshot.NONE && !myBlackList.get(i)) {
+                filteredHeads[count++] = i;
+            }
+        }
+        if (count == 0) {
+            return false;
+        }
+        setHeads(count == heads.length ? filteredHeads : Arrays.copyOf(filteredHeads, count));
+        return myNext != FlowGraphSnapshot.NONE;
+    }
+
+    /** Helper: version of {@link #setup(FlowGraphSnapshot, int[], int[])} starting from the snapshot's heads, without blacklist */
+    public boolean setup(@Nonnull FlowGraphSnapshot snapshot) {
+        return setup(snapshot, snapshot.getHeads(), new int[0]);
+    }
+
+    /** Helper: version of {@link #setup(FlowGraphSnapshot, int[], int[])} with a single head and no blacklist */
+    public boolean setup(@Nonnull FlowGraphSnapshot snapshot, int head) {
+        return setup(snapshot, new int[]{head}, new int[0]);
+    }
+
+    /** Reset internal state so that we can begin walking a new snapshot, retaining buffers */
+    protected void reset() {
+        myBlackList.clear();
+        myCurrent = FlowGraphSnapshot.NONE;
+        myNext = FlowGraphSnapshot.NONE;
+        mySnapshot = null;
+    }
+
+    /**
+     * Set up to begin scanning from the filtered heads.
+     * Assumes {@link #reset()} has been invoked, and heads are not blacklisted.
+     * @param filteredHeads Head indices that have been filtered against the blacklist
+     */
+    protected abstract void setHeads(@Nonnull int[] filteredHeads);
+
+    /**
+     * Get the next node to visit, using and updating state as needed
+     * @param current Current node index
+     * @param blackList Indices that are not eligible for visiting
+     * @return Index of next node to visit, or {@link FlowGraphSnapshot#NONE} if done
+     */
+    protected abstract int next(int current, @Nonnull BitSet blackList);
+
+    public boolean hasNext() {
+        return myNext != FlowGraphSnapshot.NONE;
+    }
+
+    /**
+     * Advance to the next node
+     * @return Index of the node
+     * @throws NoSuchElementException if there are no more nodes
+     */
+    public int nextIndex() {
+        if (myNext == FlowGraphSnapshot.NONE) {
+            throw new NoSuchElementException();
+        }
+        myCurrent = myNext;
+        myNext = next(myCurrent, myBlackList);
+        return myCurrent;
+    }
+
+    /** Snapshot being scanned, if set up */
+    @CheckForNull
+    public FlowGraphSnapshot getSnapshot() {
+        return mySnapshot;
+    }
+
+    /**
+     * Invoke the visitor on each node from the snapshot's heads, halting early if it returns false.
+     * @param snapshot Snapshot to walk
+     * @param visitor Visitor that will see each node index encountered.
+     */
+    public void visitAll(@Nonnull FlowGraphSnapshot snapshot, @Nonnull SnapshotNodeVisitor visitor) {
+        visitAll(snapshot, snapshot.getHeads(), new int[0], visitor);
+    }
+
+    /**
+     * Invoke the visitor on each node, halting early if it returns false.
+     * @param snapshot Snapshot to walk
+     * @param heads Indices to start walking from.
+     * @param blackList Indices we can't visit or pass beyond.
+     * @param visitor Visitor that will see each node index encountered.
+     */
+    public void visitAll(@Nonnull FlowGraphSnapshot snapshot, @Nonnull int[] heads, @Nonnull int[] blackList, @Nonnull SnapshotNodeVisitor visitor) {
+        if (!setup(snapshot, heads, blackList)) {
+            return;
+        }
+        while (hasNext()) {
+            if (!visitor.visit(snapshot, nextIndex())) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Return the indices of nodes matching a condition, in the order encountered.
+     * @param snapshot Snapshot to walk
+     * @param heads Indices to start walking from.
+     * @param blackList Indices we can't visit or pass beyond.
+     * @param matchCondition Visitor used as a predicate: nodes are included when it returns true, but scanning always continues
+     * @return Matching node indices, which may be converted to nodes with {@link FlowGraphSnapshot#getNodes(int[])}
+     */
+    @Nonnull
+    public int[] filteredIndices(@Nonnull FlowGraphSnapshot snapshot, @Nonnull int[] heads, @Nonnull int[] blackList, @Nonnull SnapshotNodeVisitor matchCondition) {
+        if (!setup(snapshot, heads, blackList)) {
+            return new int[0];
+        }
+        int[] output = new int[16];
+        int count = 0;
+        while (hasNext()) {
+            int index = nextIndex();
+            if (matchCondition.visit(snapshot, index)) {
+                if (count == output.length) {
+                    output = Arrays.copyOf(output, count * 2);
+                }
+                output[count++] = index;
+            }
+        }
+        return Arrays.copyOf(output, count);
+    }
+}
@@ -37,6 +37,7 @@ import javax.annotation.concurrent.NotThreadSafe;
 import java.lang.reflect.Array;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
@@ -61,6 +62,71 @@ public class DepthFirstScanner extends AbstractFlowScanner {
 
     protected HashSet<FlowNode> visited = new HashSet<FlowNode>();
 
+    /** Visited nodes with numeric ids, when {@link #setNumericIds(boolean)} is enabled; others still go in {@link #visited} */
+    private final BitSet visitedNumeric = new BitSet();
+
+    private boolean numericIds = Boolean.getBoolean(DepthFirstScanner.class.getName() + ".numericIds");
+
+    /**
+     * Enable or disable tracking visited nodes by numeric id.
+     *
+     * <p>When enabled, nodes whose ids are plain decimal numbers, as they are in practice, are recorded as visited in a {@link BitSet}
+     * rather than {@link #visited}, which avoids hashing their id strings and allocating a set entry for each.
+     * Nodes with any other id are still tracked in {@link #visited}.
+     * @param numericIds True to enable
+     */
+    public void setNumericIds(boolean numericIds) {
+        this.numericIds = numericIds;
+    }
+
+    public boolean isNumericIds() {
+        return numericIds;
+    }
+
+    /**
+     * Parse an id in the canonical decimal form of a non-negative number, without sign or leading zeros,
+     * so that equal numbers imply equal ids.
+     * @return The number, or -1 if the id is not in that form
+     */
+    static int numericId(@Nonnull String id) {
+        int length = id.length();
+        if (length == 0 || length > 9 || (length > 1 && id.charAt(0) == '0')) {  // At most 9 digits cannot overflow
+            return -1;
+        }
+        int value = 0;
+        for (int i = 0; i < length; i++) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /** Check if a node was recorded by {@link #markVisited(FlowNode)} */
+    protected boolean isVisited(@Nonnull FlowNode f) {
+        if (numericIds) {
+            int n = numericId(f.getId());
+            if (n >= 0) {
+                return visitedNumeric.get(n);
+            }
+        }
+        return visited.contains(f);
+    }
+
+    /** Record that a node has been visited */
+    protected void markVisited(@Nonnull FlowNode f) {
+        if (numericIds) {
+            int n = numericId(f.getId());
+            if (n >= 0) {
+                visitedNumeric.set(n);
+                return;
+            }
+        }
+        visited.add(f);
+    }
+
     protected void reset() {
         if (this.queue == null) {
             this.queue = new ArrayDeque<FlowNode>();
@@ -68,6 +134,7 @@ public class DepthFirstScanner extends AbstractFlowScanner {
             this.queue.clear();
         }
         this.visited.clear();
+        this.visitedNumeric.clear();
         this.myCurrent = null;
         this.myNext = null;
     }
@@ -91,7 +158,7 @@ public class DepthFirstScanner extends AbstractFlowScanner {
     }
 
     protected boolean testCandidate(FlowNode f, Collection<FlowNode> blackList) {
-        return !blackList.contains(f) && !((possibleParallelStart(f)) && visited.contains(f));
+        return !blackList.contains(f) && !((possibleParallelStart(f)) && isVisited(f));
     }
 
     @Override
@@ -121,7 +188,7 @@ public class DepthFirstScanner extends AbstractFlowScanner {
         // Only BlockStartNodes, specifically ParallelStep can be the parent of multiple child nodes
         // Thus they're the only nodes we need to avoid visiting multiple times by recording the visit
         if (output instanceof BlockStartNode) {
-            visited.add(output);
+            markVisited(output);
         }
         return output;
     }
@@ -0,0 +1,377 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.graphanalysis;
+
+import org.jenkinsci.plugins.workflow.actions.LabelAction;
+import org.jenkinsci.plugins.workflow.actions.ThreadNameAction;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.flow.GraphListener;
+import org.jenkinsci.plugins.workflow.graph.BlockEndNode;
+import org.jenkinsci.plugins.workflow.graph.BlockStartNode;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Incrementally maintained index of the block structure of a flow graph, answering "which blocks enclose this node",
+ * "which parallel branch is this in" and "which stage is this in" without rescanning the graph.
+ *
+ * <p>The index is a {@link GraphListener.Synchronous}: each new head is indexed in constant time from its first parent,
+ * and enclosing blocks form a parent-pointer tree of {@link Block}s shared by all nodes within them.
+ * Queries are then a map lookup, plus walking up the tree where needed.
+ *
+ * <p>Use {@link #of(FlowExecution)} to obtain the index for an execution; it is registered as a listener on first use.
+ * Registration is opt-in, for callers that query a graph repeatedly as it grows: read-only helpers such as
+ * {@link FlowScanningUtils#fetchEnclosingBlocks(FlowNode)} use the registered index if there is one, and otherwise walk the graph as before.
+ * Nodes that were never seen by the listener (such as after a restart, or for nodes created before the index was requested)
+ * are indexed lazily on query by walking back to the nearest indexed node, so the index rebuilds itself from the persisted graph as needed.
+ *
+ * <p>This class is threadsafe: the listener may run concurrently with queries.
+ */
+public final class FlowGraphIndex implements GraphListener.Synchronous {
+
+    private static final Logger LOGGER = Logger.getLogger(FlowGraphIndex.class.getName());
+
+    /** Indices per execution: values must never reference their execution, or it could never be collected */
+    private static final Map<FlowExecution, FlowGraphIndex> INDICES = new WeakHashMap<FlowExecution, FlowGraphIndex>();
+
+    /** Marks nodes outside of any block, which can only be the {@link org.jenkinsci.plugins.workflow.graph.FlowStartNode} */
+    private static final Block TOP = new Block("", null);
+
+    /** Enclosing {@link Block} for each indexed node id, or {@link #TOP} */
+    private final ConcurrentHashMap<String, Block> enclosingBlocks = new ConcurrentHashMap<String, Block>();
+
+    /** {@link Block} for each {@link BlockStartNode} id */
+    private final ConcurrentHashMap<String, Block> blocks = new ConcurrentHashMap<String, Block>();
+
+    FlowGraphIndex() {}
+
+    /**
+     * Get the index for an execution, registering it as a {@link GraphListener} the first time it is requested.
+     * @param exec Execution to index
+     * @return The shared index for this execution
+     */
+    @Nonnull
+    public static FlowGraphIndex of(@Nonnull FlowExecution exec) {
+        FlowGraphIndex index;
+        synchronized (INDICES) {
+            index = INDICES.get(exec);
+            if (index != null) {
+                return index;
+            }
+            index = new FlowGraphIndex();
+            INDICES.put(exec, index);
+        }
+        exec.addListener(index);
+        return index;
+    }
+
+    /**
+     * Get the index for an execution only if one was already requested with {@link #of(FlowExecution)}.
+     * @param exec Execution to look up
+     * @return The shared index for this execution, or null if none is registered
+     */
+    @CheckForNull
+    public static FlowGraphIndex getIfRegistered(@Nonnull FlowExecution exec) {
+        synchronized (INDICES) {
+            return INDICES.get(exec);
+        }
+    }
+
+    /** A block within the graph, linked to the block enclosing it */
+    public static final class Block {
+        private final String startId;
+        private final Block parent;
+        private final int depth;
+
+        // Actions may be added to the start node after it is created, so these are filled in as they become available
+        private volatile String branchName;
+        private volatile String label;
+        private volatile boolean closed = false;
+        // Set when the start node may have gained actions since they were last checked, so queries only reload it then
+        private volatile boolean stale = false;
+
+        Block(@Nonnull String startId, @CheckForNull Block parent) {
+            this.startId = startId;
+            this.parent = parent;
+            this.depth = (parent == null) ? 0 : parent.depth + 1;
+        }
+
+        /** {@link FlowNode#getId()} of the {@link BlockStartNode} */
+        @Nonnull
+        public String getStartId() {
+            return startId;
+        }
+
+        /** The enclosing block, or null if this is the outermost */
+        @CheckForNull
+        public Block getParent() {
+            return parent;
+        }
+
+        /** Number of blocks enclosing this one */
+        public int getDepth() {
+            return depth;
+        }
+
+        /** True once the {@link BlockEndNode} has been indexed */
+        public boolean isClosed() {
+            return closed;
+        }
+
+        void update(@Nonnull FlowNode start) {
+            if (branchName == null) {
+                ThreadNameAction threadName = start.getPersistentAction(ThreadNameAction.class);
+                if (threadName != null) {
+                    branchName = threadName.getThreadName();
+                }
+            }
+            if (label == null) {
+                LabelAction labelAction = start.getPersistentAction(LabelAction.class);
+                if (labelAction != null && !(labelAction instanceof ThreadNameAction)) {
+                    label = labelAction.getDisplayName();
+                }
+            }
+        }
+
+        /** Note that actions may have been added to the start node */
+        void invalidate() {
+            stale = true;
+        }
+
+        /** Recheck actions on the start node, if they might have been added since the last check */
+        void refresh(@Nonnull FlowExecution exec) {
+            if (!stale || closed || (branchName != null && label != null)) {
+                return;
+            }
+            stale = false;  // Before loading, so a concurrent invalidation is not lost
+            try {
+                FlowNode start = exec.getNode(startId);
+                if (start != null) {
+                    update(start);
+                }
+            } catch (IOException ioe) {
+                LOGGER.log(Level.FINE, "Failed to load block start " + startId, ioe);
+            }
+        }
+    }
+
+    @Override
+    public void onNewHead(FlowNode node) {
+        try {
+            if (node instanceof BlockStartNode) {
+                Block own = blocks.get(node.getId());
+                if (own != null) {  // Reported again, so it may have changed
+                    own.invalidate();
+                }
+            }
+            ensureIndexed(node);
+        } catch (RuntimeException ex) {  // Never break the execution because of a problem indexing
+            LOGGER.log(Level.WARNING, "Failed to index " + node, ex);
+        }
+    }
+
+    /** Get the enclosing block of a node, indexing it and any unindexed ancestors along the way */
+    @Nonnull
+    Block ensureIndexed(@Nonnull FlowNode node) {
+        Block existing = enclosingBlocks.get(node.getId());
+        if (existing != null) {
+            return existing;
+        }
+        // Walk back to the nearest indexed node, then index forward from there so each node can use its parent
+        ArrayDeque<FlowNode> pending = new ArrayDeque<FlowNode>();
+        FlowNode current = node;
+        while (current != null && !enclosingBlocks.containsKey(current.getId())) {
+            pending.push(current);
+            List<FlowNode> parents = current.getParents();
+            current = parents.isEmpty() ? null : parents.get(0);
+        }
+        Block output = TOP;
+        while (!pending.isEmpty()) {
+            output = index(pending.pop());
+        }
+        return output;
+    }
+
+    /** Index a single node whose first parent is already indexed */
+    @Nonnull
+    private Block index(@Nonnull FlowNode node) {
+        Block enclosing;
+        List<FlowNode> parents = node.getParents();
+        if (node instanceof BlockEndNode) {
+            BlockStartNode start = ((BlockEndNode) node).getStartNode();
+            enclosing = ensureIndexed(start);
+            Block own = blocks.get(start.getId());
+            if (own != null) {
+                own.update(start);
+                own.closed = true;
+            }
+        } else if (parents.isEmpty()) {
+            enclosing = TOP;
+        } else {
+            FlowNode parent = parents.get(0);
+            if (parent instanceof BlockStartNode) {
+                ensureIndexed(parent);
+                enclosing = blocks.get(parent.getId());
+                // Actions are normally added to a start node before anything runs inside it, so check it once more now
+                enclosing.invalidate();
+            } else {
+                enclosing = ensureIndexed(parent);
+            }
+        }
+
+        // Register the block before the node itself, so anything seeing the node indexed can find its block
+        if (node instanceof BlockStartNode) {
+            Block own = new Block(node.getId(), (enclosing == TOP) ? null : enclosing);
+            own.update(node);
+            blocks.putIfAbsent(node.getId(), own);
+        }
+        Block previous = enclosingBlocks.putIfAbsent(node.getId(), enclosing);
+        return (previous != null) ? previous : enclosing;  // May have been indexed concurrently
+    }
+
+    /**
+     * Get the innermost block enclosing a node
+     * @param node Node to look up
+     * @return Innermost enclosing {@link Block}, or null if none (only for the start of the flow)
+     */
+    @CheckForNull
+    public Block getEnclosingBlock(@Nonnull FlowNode node) {
+        Block b = ensureIndexed(node);
+        return (b == TOP) ? null : b;
+    }
+
+    /**
+     * Get the {@link Block} started by a {@link BlockStartNode}
+     * @param start Start of the block
+     * @return Block for it
+     */
+    @Nonnull
+    public Block getBlock(@Nonnull BlockStartNode start) {
+        ensureIndexed(start);
+        return blocks.get(start.getId());
+    }
+
+    /**
+     * Get the ids of the {@link BlockStartNode}s enclosing a node, from the inside out.
+     * @param node Node to look up
+     * @return List of ids, innermost first, empty if there are no enclosing blocks
+     */
+    @Nonnull
+    public List<String> getEnclosingBlockIds(@Nonnull FlowNode node) {
+        Block b = getEnclosingBlock(node);
+        if (b == null) {
+            return Collections.emptyList();
+        }
+        ArrayList<String> output = new ArrayList<String>(b.depth + 1);
+        for (; b != null; b = b.parent) {
+            output.add(b.startId);
+        }
+        return output;
+    }
+
+    /**
+     * Get the {@link BlockStartNode}s enclosing a node, from the inside out.
+     * @param node Node to look up
+     * @return List of enclosing blocks, innermost first, empty if there are no enclosing blocks
+     */
+    @Nonnull
+    public List<BlockStartNode> getEnclosingBlocks(@Nonnull FlowNode node) {
+        Block b = getEnclosingBlock(node);
+        if (b == null) {
+            return Collections.emptyList();
+        }
+        FlowExecution exec = node.getExecution();
+        ArrayList<BlockStartNode> output = new ArrayList<BlockStartNode>(b.depth + 1);
+        for (; b != null; b = b.parent) {
+            try {
+                FlowNode start = exec.getNode(b.startId);
+                if (start instanceof BlockStartNode) {
+                    output.add((BlockStartNode) start);
+                }
+            } catch (IOException ioe) {
+                LOGGER.log(Level.WARNING, "Failed to load block start " + b.startId, ioe);
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Find the parallel branch containing a node
+     * @param node Node to look up
+     * @return Innermost enclosing block for a parallel branch (its start has a {@link ThreadNameAction}), or null if not in a parallel
+     */
+    @CheckForNull
+    public Block getParallelBranch(@Nonnull FlowNode node) {
+        FlowExecution exec = node.getExecution();
+        for (Block b = getEnclosingBlock(node); b != null; b = b.parent) {
+            b.refresh(exec);
+            if (b.branchName != null) {
+                return b;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the name of the parallel branch containing a node
+     * @param node Node to look up
+     * @return Name given by {@link ThreadNameAction}, or null if not in a parallel
+     */
+    @CheckForNull
+    public String getParallelBranchName(@Nonnull FlowNode node) {
+        Block b = getParallelBranch(node);
+        return (b == null) ? null : b.branchName;
+    }
+
+    /**
+     * Find the name of the labelled block (such as a stage) containing a node.
+     * Only block-scoped labels count: parallel branch names are excluded.
+     * @param node Node to look up
+     * @return Display name of the innermost enclosing {@link LabelAction}, or null if none
+     */
+    @CheckForNull
+    public String getStageName(@Nonnull FlowNode node) {
+        FlowExecution exec = node.getExecution();
+        for (Block b = getEnclosingBlock(node); b != null; b = b.parent) {
+            b.refresh(exec);
+            if (b.label != null) {
+                return b.label;
+            }
+        }
+        return null;
+    }
+}
@@ -24,13 +24,20 @@
 
 package org.jenkinsci.plugins.workflow.graphanalysis;
 
+import com.google.common.base.Function;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
+import com.google.common.collect.Iterators;
 import hudson.model.Action;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
 import org.jenkinsci.plugins.workflow.graph.BlockStartNode;
 import org.jenkinsci.plugins.workflow.graph.FlowNode;
 
 import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Library of common functionality when analyzing/walking flow graphs
@@ -38,6 +45,8 @@ import javax.annotation.Nonnull;
  */
 public final class FlowScanningUtils {
 
+    private static final Logger LOGGER = Logger.getLogger(FlowScanningUtils.class.getName());
+
     /** Prevent instantiation */
     private FlowScanningUtils() {}
 
@@ -62,14 +71,38 @@ public final class FlowScanningUtils {
     /**
      * Returns all {@link BlockStartNode}s enclosing the given FlowNode, starting from the inside out.
      * This is useful if we want to obtain information about its scope, such as the workspace, parallel branch, or label.
-     * Warning: while this is efficient for one node, batch operations are far more efficient when handling many nodes.
+     * If the FlowNode is itself a {@link BlockStartNode}, it is returned first.
+     *
+     * <p>If a {@link FlowGraphIndex} has been registered for the execution, block structure is memoized there, so after the first lookup
+     * in a part of the graph this is a walk up the chain of enclosing blocks rather than back through every node.
+     * Otherwise this hops backwards over blocks with a {@link LinearBlockHoppingScanner}, and no listener is added to the execution.
+     * Start nodes are loaded as iterated.
      * @param f {@link FlowNode} to start from.
      * @return Iterator that returns all enclosing BlockStartNodes from the inside out.
      */
     @Nonnull
     public static Filterator<FlowNode> fetchEnclosingBlocks(@Nonnull FlowNode f) {
-        LinearBlockHoppingScanner scanner = new LinearBlockHoppingScanner();
-        scanner.setup(f);
-        return scanner.filter(MATCH_BLOCK_START);
+        final FlowExecution exec = f.getExecution();
+        FlowGraphIndex index = FlowGraphIndex.getIfRegistered(exec);
+        if (index == null) {
+            LinearBlockHoppingScanner scanner = new LinearBlockHoppingScanner();
+            scanner.setup(f);
+            return scanner.filter(MATCH_BLOCK_START);
+        }
+        Iterator<FlowNode> enclosing = Iterators.transform(index.getEnclosingBlockIds(f).iterator(), new Function<String, FlowNode>() {
+            @Override
+            public FlowNode apply(String id) {
+                try {
+                    return exec.getNode(id);
+                } catch (IOException ioe) {
+                    LOGGER.log(Level.WARNING, "Failed to load block start " + id, ioe);
+                    return null;
+                }
+            }
+        });
+        if (f instanceof BlockStartNode) {
+            enclosing = Iterators.concat(Iterators.singletonIterator(f), enclosing);
+        }
+        return new FilteratorImpl<FlowNode>(enclosing, MATCH_BLOCK_START);  // Also drops nodes that failed to load
     }
 }
@@ -26,8 +26,10 @@ package org.jenkinsci.plugins.workflow.graphanalysis;
 
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import org.jenkinsci.plugins.workflow.actions.ThreadNameAction;
 import org.jenkinsci.plugins.workflow.actions.TimingAction;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
 import org.jenkinsci.plugins.workflow.graph.BlockEndNode;
 import org.jenkinsci.plugins.workflow.graph.BlockStartNode;
 import org.jenkinsci.plugins.workflow.graph.FlowEndNode;
@@ -40,10 +42,17 @@ import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Scanner that will scan down all forks when we hit parallel blocks before continuing, but generally runs in linear order
@@ -107,6 +116,18 @@ public class ForkScanner extends AbstractFlowScanner {
     NodeType currentType = null;
     NodeType nextType = null;
 
+    /**
+     * Parallel blocks with at least this many branches get their branches loaded concurrently,
+     * if enabled by {@link #setLoadBranchesConcurrently(boolean)}.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+    static int CONCURRENT_BRANCH_THRESHOLD = Integer.getInteger(ForkScanner.class.getName() + ".concurrentBranchThreshold", 8);
+
+    /** Shared by all scanners loading branches concurrently, created on first use */
+    private static ForkJoinPool branchLoadingPool;
+
+    private boolean loadBranchesConcurrently = Boolean.getBoolean(ForkScanner.class.getName() + ".loadBranchesConcurrently");
+
     public ForkScanner() {
 
     }
@@ -149,6 +170,93 @@ public class ForkScanner extends AbstractFlowScanner {
         return f != null && f instanceof BlockEndNode && (f.getParents().size()>1 || isParallelStart(((BlockEndNode) f).getStartNode()));
     }
 
+    /**
+     * Enable or disable concurrent loading of parallel branches.
+     *
+     * <p>When enabled, on reaching the end of a parallel block with many branches we load the nodes and actions of all
+     * branches concurrently on a fork-join pool, and wait for that before continuing.
+     * The visit itself stays sequential, so the order of nodes and of {@link SimpleChunkVisitor} callbacks is unchanged;
+     * what runs in parallel is the storage reads that otherwise dominate the time to scan a wide parallel.
+     * This pays off for graphs that are not in memory yet, such as completed builds viewed after a restart.
+     * <p>Only executions declaring {@link FlowExecution#isConcurrentNodeLoadingSupported()} are loaded this way;
+     * others are always scanned on the calling thread alone.
+     * @param loadBranchesConcurrently True to enable
+     */
+    public void setLoadBranchesConcurrently(boolean loadBranchesConcurrently) {
+        this.loadBranchesConcurrently = loadBranchesConcurrently;
+    }
+
+    public boolean isLoadBranchesConcurrently() {
+        return loadBranchesConcurrently;
+    }
+
+    private static synchronized ForkJoinPool getBranchLoadingPool() {
+        if (branchLoadingPool == null) {
+            branchLoadingPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return branchLoadingPool;
+    }
+
+    /** Loads the nodes of one branch and their actions, by walking back from the branch end until the parallel start */
+    static class BranchLoader implements Callable<Void> {
+        private final FlowNode branchEnd;
+        private final FlowNode parallelStart;
+        private final Collection<FlowNode> blackList;
+
+        BranchLoader(@Nonnull FlowNode branchEnd, @Nonnull FlowNode parallelStart, @Nonnull Collection<FlowNode> blackList) {
+            this.branchEnd = branchEnd;
+            this.parallelStart = parallelStart;
+            this.blackList = blackList;
+        }
+
+        @Override
+        public Void call() {
+            int window = Math.max(AbstractFlowScanner.PREFETCH_WINDOW, 1);
+            ArrayList<FlowNode> batch = new ArrayList<FlowNode>(window);
+            HashSet<FlowNode> seen = new HashSet<FlowNode>();
+            ArrayDeque<FlowNode> queue = new ArrayDeque<FlowNode>();
+            queue.push(branchEnd);
+            seen.add(branchEnd);
+            while (!queue.isEmpty()) {
+                FlowNode f = queue.pop();
+                batch.add(f);
+                if (batch.size() >= window) {
+                    FlowNode.prefetchActions(batch);
+                    batch.clear();
+                }
+                for (FlowNode p : f.getParents()) {
+                    if (!p.equals(parallelStart) && !blackList.contains(p) && seen.add(p)) {
+                        queue.push(p);
+                    }
+                }
+            }
+            FlowNode.prefetchActions(batch);
+            return null;
+        }
+    }
+
+    /**
+     * Load all branches of a parallel concurrently, returning once all are loaded.
+     * Failures are only logged: anything not loaded here is loaded as usual when visited.
+     */
+    void loadBranches(@Nonnull Collection<FlowNode> branchEnds, @Nonnull FlowNode parallelStart, @Nonnull Collection<FlowNode> blackList) {
+        List<Callable<Void>> loaders = new ArrayList<Callable<Void>>(branchEnds.size());
+        for (FlowNode f : branchEnds) {
+            loaders.add(new BranchLoader(f, parallelStart, blackList));
+        }
+        try {
+            for (Future<Void> result : getBranchLoadingPool().invokeAll(loaders)) {
+                try {
+                    result.get();
+                } catch (ExecutionException ex) {
+                    LOGGER.log(Level.FINE, "Failed to load parallel branch of " + parallelStart, ex.getCause());
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     /** If true, we are walking from the flow end node and have a complete view of the flow
      *  Needed because there are implications when not walking from a finished flow (blocks without a {@link BlockEndNode})*/
     public boolean isWalkingFromFinish() {
@@ -439,14 +547,18 @@ public class ForkScanner extends AbstractFlowScanner {
     FlowNode hitParallelEnd(BlockEndNode endNode, List<FlowNode> parents, Collection<FlowNode> blackList) {
         BlockStartNode start = endNode.getStartNode();
 
-        ArrayDeque<FlowNode> branches = new ArrayDeque<FlowNode>();
-        for (FlowNode f : parents) {
+        ArrayDeque<FlowNode> branches = new ArrayDeque<FlowNode>(parents.size());
+        for (int i = 0; i < parents.size(); i++) {
+            FlowNode f = parents.get(i);
             if (!blackList.contains(f)) {
                 branches.addFirst(f);
             }
         }
 
         FlowNode output = null;
+        if (loadBranchesConcurrently && branches.size() >= CONCURRENT_BRANCH_THRESHOLD && start.getExecution().isConcurrentNodeLoadingSupported()) {
+            loadBranches(branches, start, blackList);
+        }
         if (branches.size() > 0) { // Push another branch start
             ParallelBlockStart parallelBlockStart = new ParallelBlockStart(start);
             output = branches.pop();
@@ -643,4 +755,5 @@ public class ForkScanner extends AbstractFlowScanner {
         }
     }
 
+    private static final Logger LOGGER = Logger.getLogger(ForkScanner.class.getName());
 }
@@ -31,6 +31,7 @@ import org.jenkinsci.plugins.workflow.graph.FlowNode;
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.NotThreadSafe;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
@@ -86,6 +87,24 @@ public class LinearBlockHoppingScanner extends LinearScanner {
     protected FlowNode jumpBlockScan(@CheckForNull FlowNode node, @Nonnull Collection<FlowNode> blacklistNodes) {
         FlowNode candidate = node;
 
+        // Without a blacklist to respect, the block end knows where we land, even across a long run of sibling blocks
+        if (candidate instanceof BlockEndNode && blacklistNodes.isEmpty()) {
+            String targetId = ((BlockEndNode) candidate).getJumpTargetId();
+            if (targetId != null) {
+                if (targetId.isEmpty()) {
+                    return null;
+                }
+                try {
+                    FlowNode target = candidate.getExecution().getNode(targetId);
+                    if (target != null) {
+                        return target;
+                    }
+                } catch (IOException ioe) {
+                    LOGGER.log(Level.FINE, "Failed to load node " + targetId + ", hopping blocks one at a time", ioe);
+                }
+            }
+        }
+
         // Find the first candidate node preceding a block... and filtering by blacklist
         while (candidate != null && candidate instanceof BlockEndNode) {
             candidate = ((BlockEndNode) candidate).getStartNode();
@@ -97,7 +116,8 @@ public class LinearBlockHoppingScanner extends LinearScanner {
                 return null;
             }
             boolean foundNode = false;
-            for (FlowNode f : parents) {
+            for (int i = 0; i < parents.size(); i++) {
+                FlowNode f = parents.get(i);
                 if (!blacklistNodes.contains(f)) {
                     candidate = f;  // Loop again b/c could be BlockEndNode
                     foundNode = true;
@@ -118,8 +138,9 @@ public class LinearBlockHoppingScanner extends LinearScanner {
             return null;
         }
         List<FlowNode> parents = current.getParents();
-        if (parents != null && parents.size() > 0) {
-            for (FlowNode f : parents) {
+        if (parents != null) {
+            for (int i = 0; i < parents.size(); i++) {  // Indexed to avoid allocating an iterator per node
+                FlowNode f = parents.get(i);
                 if (!blackList.contains(f)) {
                     return (f instanceof BlockEndNode) ? jumpBlockScan(f, blackList) : f;
                 }
@@ -83,8 +83,9 @@ public class LinearScanner extends AbstractFlowScanner {
             return null;
         }
         List<FlowNode> parents = current.getParents();
-        if (parents != null && parents.size() > 0) {
-            for (FlowNode f : parents) {
+        if (parents != null) {
+            for (int i = 0; i < parents.size(); i++) {  // Indexed to avoid allocating an iterator per node
+                FlowNode f = parents.get(i);
                 if (!blackList.contains(f)) {
                     return f;
                 }
@@ -93,6 +94,16 @@ public class LinearScanner extends AbstractFlowScanner {
         return null;
     }
 
+    /** Only follows the nodes we will actually visit, since we skip parallel branches */
+    @Override
+    protected void collectPrefetchWindow(@Nonnull FlowNode current, int maxNodes, @Nonnull Collection<FlowNode> output) {
+        FlowNode f = current;
+        while (f != null && output.size() < maxNodes) {
+            output.add(f);
+            f = next(f, myBlackList);
+        }
+    }
+
     /**
      * {@inheritDoc}
      * @deprecated prefer {@link #filteredNodes(FlowNode, Predicate)}
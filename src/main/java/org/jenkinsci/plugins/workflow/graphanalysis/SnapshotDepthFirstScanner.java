@@ -0,0 +1,101 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.graphanalysis;
+
+import org.jenkinsci.plugins.workflow.graph.FlowGraphSnapshot;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Depth-first search of all nodes in a {@link FlowGraphSnapshot}, visiting them in the same order as {@link DepthFirstScanner}.
+ */
+@NotThreadSafe
+public class SnapshotDepthFirstScanner extends AbstractSnapshotScanner {
+
+    /** Stack of pending node indices, retained between setups */
+    protected int[] queue = new int[16];
+
+    protected int queueSize = 0;
+
+    /** Block starts already visited, since only they can be reached from multiple children */
+    protected final BitSet visited = new BitSet();
+
+    @Override
+    protected void reset() {
+        super.reset();
+        queueSize = 0;
+        visited.clear();
+    }
+
+    protected void push(int index) {
+        if (queueSize == queue.length) {
+            queue = Arrays.copyOf(queue, queueSize * 2);
+        }
+        queue[queueSize++] = index;
+    }
+
+    @Override
+    protected void setHeads(@Nonnull int[] heads) {
+        for (int i = heads.length - 1; i >= 0; i--) {
+            push(heads[i]);
+        }
+        myCurrent = queue[--queueSize];
+        myNext = myCurrent;
+    }
+
+    protected boolean testCandidate(int index, @Nonnull BitSet blackList) {
+        return !blackList.get(index) && !(mySnapshot.isBlockStart(index) && visited.get(index));
+    }
+
+    @Override
+    protected int next(int current, @Nonnull BitSet blackList) {
+        int output = FlowGraphSnapshot.NONE;
+        int parentCount = mySnapshot.getParentCount(current);
+        if (parentCount == 1) {
+            int p = mySnapshot.getFirstParent(current);
+            if (testCandidate(p, blackList)) {
+                output = p;
+            }
+        } else if (parentCount > 1) { // Add the branches in reverse order
+            for (int i = parentCount - 1; i >= 0; i--) {
+                int p = mySnapshot.getParent(current, i);
+                if (testCandidate(p, blackList)) {
+                    push(p);
+                }
+            }
+        }
+
+        if (output == FlowGraphSnapshot.NONE && queueSize > 0) {
+            output = queue[--queueSize];
+        }
+        if (output != FlowGraphSnapshot.NONE && mySnapshot.isBlockStart(output)) {
+            visited.set(output);
+        }
+        return output;
+    }
+}
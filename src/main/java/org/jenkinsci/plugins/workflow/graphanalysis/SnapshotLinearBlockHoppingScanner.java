@@ -0,0 +1,65 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.graphanalysis;
+
+import org.jenkinsci.plugins.workflow.graph.FlowGraphSnapshot;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.BitSet;
+
+/**
+ * Scans a {@link FlowGraphSnapshot} linearly while hopping over nested blocks, like {@link LinearBlockHoppingScanner}.
+ * Block start/end pairing comes from the snapshot, so no start nodes are loaded to do the hop.
+ */
+@NotThreadSafe
+public class SnapshotLinearBlockHoppingScanner extends SnapshotLinearScanner {
+
+    @Override
+    protected void setHeads(@Nonnull int[] heads) {
+        myCurrent = jumpBlockScan(heads[0], myBlackList);
+        myNext = myCurrent;
+        warnIfMultipleHeads(heads);
+    }
+
+    /** Keeps jumping over blocks until we hit the first node preceding a block */
+    protected int jumpBlockScan(int index, @Nonnull BitSet blackList) {
+        int candidate = index;
+        while (candidate != FlowGraphSnapshot.NONE && mySnapshot.isBlockEnd(candidate)) {
+            int start = mySnapshot.getBlockStart(candidate);
+            if (start == FlowGraphSnapshot.NONE || blackList.get(start)) {
+                return FlowGraphSnapshot.NONE;
+            }
+            candidate = firstAllowedParent(start, blackList);
+        }
+        return candidate;
+    }
+
+    @Override
+    protected int next(int current, @Nonnull BitSet blackList) {
+        int p = firstAllowedParent(current, blackList);
+        return (p != FlowGraphSnapshot.NONE && mySnapshot.isBlockEnd(p)) ? jumpBlockScan(p, blackList) : p;
+    }
+}
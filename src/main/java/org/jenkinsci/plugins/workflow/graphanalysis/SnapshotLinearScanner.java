@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.graphanalysis;
+
+import org.jenkinsci.plugins.workflow.graph.FlowGraphSnapshot;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.BitSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Scans a {@link FlowGraphSnapshot} in strictly linear fashion, following the first non-blacklisted parent, like {@link LinearScanner}.
+ * Only the first head is used, and passing more logs a warning.
+ */
+@NotThreadSafe
+public class SnapshotLinearScanner extends AbstractSnapshotScanner {
+
+    private static final Logger LOGGER = Logger.getLogger(SnapshotLinearScanner.class.getName());
+
+    @Override
+    protected void setHeads(@Nonnull int[] heads) {
+        myCurrent = heads[0];
+        myNext = myCurrent;
+        warnIfMultipleHeads(heads);
+    }
+
+    /** Warn, as {@link LinearScanner} does, if any heads other than the first would be ignored */
+    static void warnIfMultipleHeads(@Nonnull int[] heads) {
+        for (int i = 1; i < heads.length; i++) {
+            if (heads[i] != heads[0]) {
+                LOGGER.log(Level.WARNING, null, new IllegalArgumentException("Multiple heads not supported for linear scanners"));
+                return;
+            }
+        }
+    }
+
+    /** First parent of the node that isn't blacklisted, or {@link FlowGraphSnapshot#NONE} */
+    protected int firstAllowedParent(int current, @Nonnull BitSet blackList) {
+        int parentCount = mySnapshot.getParentCount(current);
+        for (int i = 0; i < parentCount; i++) {
+            int p = mySnapshot.getParent(current, i);
+            if (!blackList.get(p)) {
+                return p;
+            }
+        }
+        return FlowGraphSnapshot.NONE;
+    }
+
+    @Override
+    protected int next(int current, @Nonnull BitSet blackList) {
+        return firstAllowedParent(current, blackList);
+    }
+}
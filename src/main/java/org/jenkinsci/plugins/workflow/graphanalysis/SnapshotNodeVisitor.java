@@ -0,0 +1,45 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.graphanalysis;
+
+import org.jenkinsci.plugins.workflow.graph.FlowGraphSnapshot;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Counterpart of {@link FlowNodeVisitor} for scanning a {@link FlowGraphSnapshot} by node index.
+ *
+ * <p>This is intended to couple with {@link AbstractSnapshotScanner#visitAll(FlowGraphSnapshot, SnapshotNodeVisitor)}
+ */
+public interface SnapshotNodeVisitor {
+    /**
+     * Visit the node, and indicate if we should continue analysis
+     *
+     * @param snapshot Snapshot being scanned, use {@link FlowGraphSnapshot#getNode(int)} if you need the actual node
+     * @param index Index of the node to visit
+     * @return False if we should stop visiting nodes
+     */
+    boolean visit(@Nonnull FlowGraphSnapshot snapshot, int index);
+}
@@ -12,6 +12,8 @@
  *     <li><em>Visit every node as fast as possible?</em> {@link org.jenkinsci.plugins.workflow.graphanalysis.DepthFirstScanner}</li>
  *     <li><em>Visit every block in a predictable order, from end to start?</em> {@link org.jenkinsci.plugins.workflow.graphanalysis.ForkScanner}</li>
  *     <li><em>Fastest way to find preceding sibling or enclosing nodes?</em> {@link org.jenkinsci.plugins.workflow.graphanalysis.LinearBlockHoppingScanner}</li>
+ *     <li><em>Walking the same large graph many times?</em> Take a {@link org.jenkinsci.plugins.workflow.graph.FlowGraphSnapshot} and use the
+ *         {@link org.jenkinsci.plugins.workflow.graphanalysis.AbstractSnapshotScanner} implementations</li>
  * </ol>
  */
 
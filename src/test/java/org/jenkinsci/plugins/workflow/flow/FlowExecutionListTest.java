@@ -0,0 +1,597 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.flow;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import hudson.ExtensionList;
+import hudson.XmlFile;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.model.listeners.ItemListener;
+import jenkins.model.CauseOfInterruption;
+import jenkins.model.Jenkins;
+import org.acegisecurity.Authentication;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link FlowExecutionList}, using owners whose executions are held in memory so that tests control how they load
+ */
+public class FlowExecutionListTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+
+    /** Executions of {@link TestOwner}s by name; owners without one fail to load */
+    static final Map<String, TestExecution> EXECUTIONS = new ConcurrentHashMap<String, TestExecution>();
+
+    private int oldResumeConcurrency;
+    private int oldCompactThreshold;
+
+    @Before
+    public void setUp() {
+        oldResumeConcurrency = FlowExecutionList.ItemListenerImpl.RESUME_CONCURRENCY;
+        oldCompactThreshold = FlowExecutionList.COMPACT_THRESHOLD;
+    }
+
+    @After
+    public void tearDown() {
+        FlowExecutionList.ItemListenerImpl.RESUME_CONCURRENCY = oldResumeConcurrency;
+        FlowExecutionList.COMPACT_THRESHOLD = oldCompactThreshold;
+        EXECUTIONS.clear();
+    }
+
+    @Test
+    public void resumeLoadsInParallel() throws Exception {
+        FlowExecutionList.ItemListenerImpl.RESUME_CONCURRENCY = 2;
+        TestExecution a = running("a", 1), b = running("b", 1);
+        // Each load waits for the other one to start, so they only succeed if run at the same time
+        CountDownLatch bothLoading = new CountDownLatch(2);
+        a.loadBarrier = bothLoading;
+        b.loadBarrier = bothLoading;
+
+        resumeAll();
+        Assert.assertEquals(1, a.resumed.get());
+        Assert.assertEquals(1, b.resumed.get());
+    }
+
+    @Test
+    public void resumeWaitsForEveryBuild() throws Exception {
+        FlowExecutionList.ItemListenerImpl.RESUME_CONCURRENCY = 2;
+        List<TestExecution> executions = new ArrayList<TestExecution>();
+        for (int i = 0; i < 6; i++) {
+            TestExecution e = running("build" + i, 2);
+            e.loadDelay = 100 * i;
+            executions.add(e);
+        }
+
+        resumeAll();
+        // Every build has been loaded and resumed by the time startup moves on
+        for (TestExecution e : executions) {
+            Assert.assertEquals(e.toString(), 1, e.loads.get());
+            Assert.assertEquals(e.toString(), 2, e.resumed.get());
+        }
+    }
+
+    @Test
+    public void resumeIsolatesFailures() throws Exception {
+        FlowExecutionList.ItemListenerImpl.RESUME_CONCURRENCY = 2;
+        TestExecution first = running("first", 1);
+        FlowExecutionList.get().register(new TestOwner("missing"));
+        TestExecution broken = running("broken", 1);
+        broken.loadFailure = new IllegalStateException("cannot deserialize");
+        TestExecution noSteps = running("noSteps", 1);
+        noSteps.steps = SettableFuture.create();
+        noSteps.steps.setException(new IOException("cannot load program"));
+        TestExecution badStep = running("badStep", 2);
+        badStep.failResume = true;
+        TestExecution last = running("last", 1);
+
+        resumeAll();
+        Assert.assertEquals(1, first.resumed.get());
+        Assert.assertEquals(1, last.resumed.get());
+        Assert.assertEquals(0, broken.resumed.get());
+        Assert.assertEquals(0, noSteps.resumed.get());
+        Assert.assertEquals("Stops at the failing step of that build only", 1, badStep.resumed.get());
+
+        // A build which cannot be found is forgotten, even if it turns up later, while the others are kept
+        broken.loadFailure = null;
+        TestExecution missing = new TestExecution(new TestOwner("missing"), 0);
+        EXECUTIONS.put("missing", missing);
+        Set<FlowExecutionOwner> owners = owners(FlowExecutionList.get());
+        Assert.assertFalse(owners.contains(missing.getOwner()));
+        Assert.assertTrue(owners.contains(broken.getOwner()));
+        Assert.assertTrue(owners.contains(last.getOwner()));
+    }
+
+    @Test
+    public void registeredExecutionsAreKnownLoaded() throws Exception {
+        FlowExecutionList list = FlowExecutionList.get();
+        TestExecution e = new TestExecution(new TestOwner("new"), 1);
+        EXECUTIONS.put("new", e);
+        list.register(e.getOwner());
+        Assert.assertEquals(Collections.<FlowExecution>singletonList(e), list.getLoadedExecutions());
+        Assert.assertEquals("Only loaded by register", 1, e.loads.get());
+
+        ListenableFuture<FlowExecution> future = list.getExecutionsAsync().get(0);
+        Assert.assertTrue(future.isDone());
+        Assert.assertSame(e, future.get());
+        Assert.assertEquals(1, e.loads.get());
+
+        e.complete = true;
+        Assert.assertEquals(Collections.<FlowExecution>emptyList(), list.getLoadedExecutions());
+    }
+
+    @Test
+    public void executionsLoadInBackground() throws Exception {
+        FlowExecutionList list = FlowExecutionList.get();
+        // Registered before its execution can be loaded, as if it had been registered before a restart
+        TestOwner owner = new TestOwner("old");
+        list.register(owner);
+        TestExecution e = new TestExecution(owner, 1);
+        EXECUTIONS.put("old", e);
+        Assert.assertEquals(Collections.<FlowExecution>emptyList(), list.getLoadedExecutions());
+        Assert.assertEquals(0, e.loads.get());
+
+        // Held until the test releases it; a second load would release it by itself
+        CountDownLatch release = new CountDownLatch(2);
+        e.loadBarrier = release;
+        ListenableFuture<FlowExecution> first = list.getExecutionsAsync().get(0);
+        while (e.loads.get() == 0) {
+            Thread.sleep(10);
+        }
+        Assert.assertFalse(first.isDone());
+        ListenableFuture<FlowExecution> second = list.getExecutionsAsync().get(0);
+        release.countDown();
+        Assert.assertSame(e, first.get(30, TimeUnit.SECONDS));
+        Assert.assertSame(e, second.get(30, TimeUnit.SECONDS));
+        Assert.assertEquals("Concurrent requests share one load", 1, e.loads.get());
+        Assert.assertEquals(Collections.<FlowExecution>singletonList(e), list.getLoadedExecutions());
+
+        // Completed builds are dropped when next seen
+        e.complete = true;
+        Assert.assertNull(list.getExecutionsAsync().get(0).get());
+        Assert.assertEquals(Collections.<ListenableFuture<FlowExecution>>emptyList(), list.getExecutionsAsync());
+    }
+
+    @Test
+    public void journalReplay() throws Exception {
+        TestOwner a = stored("a"), b = stored("b"), c = stored("c");
+        FlowExecutionList list = new FlowExecutionList();
+        list.register(a);
+        list.register(b);
+        list.register(c);
+        list.unregister(b);
+        list.awaitJournal();
+        Assert.assertTrue(journal().isFile());
+        Assert.assertFalse("Only journaled so far", snapshot().exists());
+
+        // As after a crash: the changes are replayed and folded into the snapshot
+        Assert.assertEquals(set(a, c), owners(new FlowExecutionList()));
+        Assert.assertFalse(journal().exists());
+        Assert.assertEquals(set(a, c), snapshotOwners());
+        Assert.assertEquals(set(a, c), owners(new FlowExecutionList()));
+    }
+
+    @Test
+    public void journalWithTruncatedRecord() throws Exception {
+        TestOwner a = stored("a"), b = stored("b");
+        FlowExecutionList list = new FlowExecutionList();
+        list.register(a);
+        list.register(b);
+        list.awaitJournal();
+        // Cut short while writing the next record, as by a crash
+        byte[] record = record(FlowExecutionList.UNREGISTER, a);
+        appendToJournal(Arrays.copyOf(record, record.length - 10));
+        Assert.assertEquals(set(a, b), owners(new FlowExecutionList()));
+        Assert.assertFalse(journal().exists());
+    }
+
+    @Test
+    public void journalWithCorruptRecords() throws Exception {
+        TestOwner a = stored("a"), b = stored("b"), c = stored("c");
+        FlowExecutionList list = new FlowExecutionList();
+        list.register(a);
+        list.register(b);
+        list.awaitJournal();
+        // A record which cannot be read is skipped, and those after it still count
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(journal(), true));
+        try {
+            byte[] unreadable = "<no-such-class/>".getBytes("UTF-8");
+            out.writeByte(FlowExecutionList.REGISTER);
+            out.writeInt(unreadable.length);
+            out.write(unreadable);
+            out.write(record(FlowExecutionList.UNREGISTER, b));
+            // Nothing can be trusted after a bad operation or length
+            out.writeByte(42);
+            out.writeInt(Integer.MAX_VALUE);
+            out.write(record(FlowExecutionList.REGISTER, c));
+        } finally {
+            out.close();
+        }
+        Assert.assertEquals(set(a), owners(new FlowExecutionList()));
+        Assert.assertFalse(journal().exists());
+        Assert.assertEquals(set(a), snapshotOwners());
+    }
+
+    @Test
+    public void journalCompaction() throws Exception {
+        FlowExecutionList.COMPACT_THRESHOLD = 3;
+        TestOwner a = stored("a"), b = stored("b"), c = stored("c");
+        FlowExecutionList list = new FlowExecutionList();
+        list.register(a);
+        list.register(b);
+        list.awaitJournal();
+        Assert.assertTrue(journal().isFile());
+        Assert.assertFalse(snapshot().exists());
+
+        list.register(c);
+        list.awaitJournal();
+        Assert.assertFalse("Compacted after 3 records", journal().exists());
+        Assert.assertEquals(set(a, b, c), snapshotOwners());
+
+        // The journal starts over after compaction
+        list.unregister(a);
+        list.awaitJournal();
+        Assert.assertTrue(journal().isFile());
+        Assert.assertEquals(set(b, c), owners(new FlowExecutionList()));
+    }
+
+    @Test
+    public void journalCompactedAtShutdown() throws Exception {
+        TestExecution a = running("a", 0), b = running("b", 0);
+        FlowExecutionList.get().unregister(a.getOwner());
+        FlowExecutionList.saveAll();
+        Assert.assertFalse(journal().exists());
+        Assert.assertEquals(set(b.getOwner()), snapshotOwners());
+    }
+
+    @Test
+    public void concurrentRegistration() throws Exception {
+        final int threads = 8, perThread = 50;
+        final FlowExecutionList list = new FlowExecutionList();
+        final TestOwner[][] owners = new TestOwner[threads][perThread];
+        Set<FlowExecutionOwner> expected = new HashSet<FlowExecutionOwner>();
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < perThread; i++) {
+                owners[t][i] = stored(t + "-" + i);
+                if (i % 2 == 0) {
+                    expected.add(owners[t][i]);
+                }
+            }
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch registering = new CountDownLatch(threads);
+        ExecutorService pool = Executors.newFixedThreadPool(threads + 1);
+        try {
+            List<Future<?>> registrations = new ArrayList<Future<?>>();
+            for (int t = 0; t < threads; t++) {
+                final TestOwner[] mine = owners[t];
+                registrations.add(pool.submit(new Callable<Void>() {
+                    @Override public Void call() throws Exception {
+                        start.await();
+                        for (int i = 0; i < mine.length; i++) {
+                            list.register(mine[i]);
+                            if (i % 2 == 1) {
+                                list.unregister(mine[i]);
+                            }
+                        }
+                        registering.countDown();
+                        return null;
+                    }
+                }));
+            }
+            // Iterating meanwhile never fails, and never holds up the changes
+            Future<Integer> iterations = pool.submit(new Callable<Integer>() {
+                @Override public Integer call() throws Exception {
+                    start.await();
+                    int count = 0;
+                    do {
+                        for (FlowExecution e : list) {
+                            Assert.assertFalse(e.isComplete());
+                        }
+                        count++;
+                    } while (registering.getCount() > 0);
+                    return count;
+                }
+            });
+            start.countDown();
+            for (Future<?> f : registrations) {
+                f.get(1, TimeUnit.MINUTES);
+            }
+            Assert.assertTrue(iterations.get(1, TimeUnit.MINUTES) > 0);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        Assert.assertEquals(expected, owners(list));
+        // The journal agrees, whatever order the records were written in
+        list.awaitJournal();
+        Assert.assertEquals(expected, owners(new FlowExecutionList()));
+    }
+
+    @Test
+    public void broadcastTimesOutSlowBuilds() throws Exception {
+        TestExecution fast = running("fast", 2);
+        TestExecution slow = running("slow", 0);
+        slow.steps = SettableFuture.create();
+        TestExecution failing = running("failing", 0);
+        failing.steps = SettableFuture.create();
+        failing.steps.setException(new IOException("cannot load program"));
+
+        final List<StepExecution> seen = Collections.synchronizedList(new ArrayList<StepExecution>());
+        Function<StepExecution, Void> f = new Function<StepExecution, Void>() {
+            @Override public Void apply(StepExecution input) {
+                seen.add(input);
+                throw new IllegalStateException("errors are only logged");
+            }
+        };
+        FlowExecutionList list = FlowExecutionList.get();
+        FlowExecutionList.BroadcastResult result = list.broadcast(f, 500, TimeUnit.MILLISECONDS).get(30, TimeUnit.SECONDS);
+        Assert.assertEquals(3, result.getExecutions());
+        Assert.assertEquals(1, result.getCompleted());
+        Assert.assertEquals(1, result.getFailed());
+        Assert.assertEquals(1, result.getTimedOut());
+        Assert.assertEquals(2, result.getSteps());
+        Assert.assertEquals(fast.steps.get(), new ArrayList<StepExecution>(seen));
+        Assert.assertSame(result, list.getLastBroadcast());
+
+        // The slow build is still handled once it gets there
+        StepExecution late = new TestStep(slow);
+        slow.steps.set(Collections.singletonList(late));
+        long deadline = System.currentTimeMillis() + 30000;
+        while (!seen.contains(late)) {
+            Assert.assertTrue("Slow build never handled", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private File journal() {
+        return new File(r.jenkins.getRootDir(), FlowExecutionList.class.getName() + ".journal");
+    }
+
+    private XmlFile snapshot() {
+        return new XmlFile(new File(r.jenkins.getRootDir(), FlowExecutionList.class.getName() + ".xml"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Set<FlowExecutionOwner> snapshotOwners() throws IOException {
+        return new HashSet<FlowExecutionOwner>((List<FlowExecutionOwner>) snapshot().read());
+    }
+
+    /** A journal record, as {@link FlowExecutionList} writes them */
+    private static byte[] record(byte op, FlowExecutionOwner owner) throws IOException {
+        byte[] xml = Jenkins.XSTREAM2.toXML(owner).getBytes("UTF-8");
+        byte[] record = new byte[xml.length + 5];
+        record[0] = op;
+        record[1] = (byte) (xml.length >>> 24);
+        record[2] = (byte) (xml.length >>> 16);
+        record[3] = (byte) (xml.length >>> 8);
+        record[4] = (byte) xml.length;
+        System.arraycopy(xml, 0, record, 5, xml.length);
+        return record;
+    }
+
+    private void appendToJournal(byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(journal(), true);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static Set<FlowExecutionOwner> set(FlowExecutionOwner... owners) {
+        return new HashSet<FlowExecutionOwner>(Arrays.asList(owners));
+    }
+
+    /** An owner whose running build can be loaded, not registered anywhere yet */
+    private static TestOwner stored(String name) {
+        TestOwner owner = new TestOwner(name);
+        EXECUTIONS.put(name, new TestExecution(owner, 0));
+        return owner;
+    }
+
+    private static void resumeAll() {
+        ExtensionList.lookup(ItemListener.class).get(FlowExecutionList.ItemListenerImpl.class).onLoaded();
+    }
+
+    /** Adds a running build with some steps to the list */
+    static TestExecution running(String name, int steps) {
+        TestExecution e = new TestExecution(new TestOwner(name), steps);
+        EXECUTIONS.put(name, e);
+        FlowExecutionList.get().register(e.getOwner());
+        e.loads.set(0);  // Only count later loads
+        return e;
+    }
+
+    /** The owners a list yields, which loads them all */
+    static Set<FlowExecutionOwner> owners(FlowExecutionList list) {
+        Set<FlowExecutionOwner> owners = new HashSet<FlowExecutionOwner>();
+        for (FlowExecution e : list) {
+            owners.add(e.getOwner());
+        }
+        return owners;
+    }
+
+    /** Loads its execution from {@link #EXECUTIONS} */
+    static final class TestOwner extends FlowExecutionOwner {
+        private final String name;
+
+        TestOwner(String name) {
+            this.name = name;
+        }
+
+        @Override public FlowExecution get() throws IOException {
+            TestExecution e = EXECUTIONS.get(name);
+            if (e == null) {
+                throw new IOException("no build " + name);
+            }
+            e.load();
+            return e;
+        }
+        @Override public File getRootDir() throws IOException {
+            throw new IOException("not implemented");
+        }
+        @Override public Queue.Executable getExecutable() throws IOException {
+            throw new IOException("not implemented");
+        }
+        @Override public String getUrl() throws IOException {
+            throw new IOException("not implemented");
+        }
+        @Override public boolean equals(Object o) {
+            return o instanceof TestOwner && name.equals(((TestOwner) o).name);
+        }
+        @Override public int hashCode() {
+            return name.hashCode();
+        }
+        @Override public String toString() {
+            return "TestOwner[" + name + "]";
+        }
+    }
+
+    /** A running build, which tests can make slow or failing to load */
+    static final class TestExecution extends FlowExecution {
+        private final TestOwner owner;
+        /** Returned by {@link #getCurrentExecutions}, tests may replace it to hold back or fail the steps */
+        volatile SettableFuture<List<StepExecution>> steps = SettableFuture.create();
+        /** Number of times the owner loaded this execution */
+        final AtomicInteger loads = new AtomicInteger();
+        /** Number of steps resumed */
+        final AtomicInteger resumed = new AtomicInteger();
+        volatile boolean complete;
+        volatile long loadDelay;
+        volatile CountDownLatch loadBarrier;
+        volatile RuntimeException loadFailure;
+        volatile boolean failResume;
+
+        TestExecution(TestOwner owner, int stepCount) {
+            this.owner = owner;
+            List<StepExecution> list = new ArrayList<StepExecution>();
+            for (int i = 0; i < stepCount; i++) {
+                list.add(new TestStep(this));
+            }
+            steps.set(list);
+        }
+
+        void load() throws IOException {
+            loads.incrementAndGet();
+            if (loadFailure != null) {
+                throw loadFailure;
+            }
+            try {
+                Thread.sleep(loadDelay);
+                CountDownLatch barrier = loadBarrier;
+                if (barrier != null) {
+                    barrier.countDown();
+                    if (!barrier.await(30, TimeUnit.SECONDS)) {
+                        throw new IOException("other loads did not run meanwhile");
+                    }
+                }
+            } catch (InterruptedException x) {
+                throw new IOException(x);
+            }
+        }
+
+        @Override public void start() throws IOException {
+            throw new UnsupportedOperationException();
+        }
+        @Override public FlowExecutionOwner getOwner() {
+            return owner;
+        }
+        @Override public List<FlowNode> getCurrentHeads() {
+            return Collections.emptyList();
+        }
+        @Override public ListenableFuture<List<StepExecution>> getCurrentExecutions(boolean innerMostOnly) {
+            return steps;
+        }
+        @Override public boolean isCurrentHead(FlowNode n) {
+            return false;
+        }
+        @Override public void interrupt(Result r, CauseOfInterruption... causes) throws IOException, InterruptedException {
+            throw new UnsupportedOperationException();
+        }
+        @Override public void addListener(GraphListener listener) {}
+        @Override public FlowNode getNode(String id) throws IOException {
+            return null;
+        }
+        @Override public Authentication getAuthentication() {
+            throw new UnsupportedOperationException();
+        }
+        @Override public boolean isComplete() {
+            return complete;
+        }
+        @Override public String toString() {
+            return "TestExecution[" + owner + "]";
+        }
+    }
+
+    static final class TestStep extends StepExecution {
+        private final TestExecution execution;
+
+        TestStep(TestExecution execution) {
+            this.execution = execution;
+        }
+
+        @Override public boolean start() throws Exception {
+            return false;
+        }
+        @Override public void stop(Throwable cause) throws Exception {}
+        @Override public void onResume() {
+            if (execution.failResume && execution.resumed.get() > 0) {
+                throw new IllegalStateException("cannot resume");
+            }
+            execution.resumed.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.flow;
+
+import com.google.common.base.Predicates;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.graphanalysis.DepthFirstScanner;
+import org.jenkinsci.plugins.workflow.graphanalysis.SyntheticFlowGraph;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link GraphListenerDispatcher}
+ */
+public class GraphListenerDispatcherTest {
+
+    static class RecordingListener implements GraphListener {
+        final List<FlowNode> received = Collections.synchronizedList(new ArrayList<FlowNode>());
+        volatile Thread thread;
+
+        @Override
+        public void onNewHead(FlowNode node) {
+            thread = Thread.currentThread();
+            received.add(node);
+        }
+    }
+
+    static class SynchronousRecordingListener extends RecordingListener implements GraphListener.Synchronous {}
+
+    private static List<FlowNode> nodes() {
+        SyntheticFlowGraph graph = SyntheticFlowGraph.create(10, 2, 2);
+        List<FlowNode> nodes = new DepthFirstScanner().filteredNodes(graph.getHeads(), Predicates.<FlowNode>alwaysTrue());
+        Collections.reverse(nodes);
+        return nodes;
+    }
+
+    @Test
+    public void testOrderedDelivery() throws Exception {
+        List<FlowNode> nodes = nodes();
+        GraphListenerDispatcher dispatcher = new GraphListenerDispatcher();
+        SynchronousRecordingListener synchronous = new SynchronousRecordingListener();
+        RecordingListener first = new RecordingListener();
+        RecordingListener second = new RecordingListener();
+        dispatcher.addListener(synchronous);
+        dispatcher.addListener(first);
+        dispatcher.addListener(second);
+
+        for (FlowNode f : nodes) {
+            dispatcher.fire(f);
+        }
+        Assert.assertEquals(nodes, synchronous.received);
+        Assert.assertSame(Thread.currentThread(), synchronous.thread);
+
+        Assert.assertTrue(dispatcher.awaitIdle(30, TimeUnit.SECONDS));
+        Assert.assertEquals(nodes, first.received);
+        Assert.assertEquals(nodes, second.received);
+        Assert.assertNotSame(Thread.currentThread(), first.thread);
+        Assert.assertEquals(0, dispatcher.getQueueDepth());
+        Assert.assertEquals(0, dispatcher.getLagMillis());
+        Assert.assertEquals(0, dispatcher.getDroppedEvents());
+
+        dispatcher.removeListener(first);
+        dispatcher.fire(nodes.get(0));
+        Assert.assertTrue(dispatcher.awaitIdle(30, TimeUnit.SECONDS));
+        Assert.assertEquals(nodes.size(), first.received.size());
+        Assert.assertEquals(nodes.size() + 1, second.received.size());
+    }
+
+    static class BatchRecordingListener extends RecordingListener implements GraphListener.Batched {
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        final int maxBatchSize;
+        final long maxLatency;
+
+        BatchRecordingListener(int maxBatchSize, long maxLatency) {
+            this.maxBatchSize = maxBatchSize;
+            this.maxLatency = maxLatency;
+        }
+
+        @Override
+        public void onNewHeads(List<FlowNode> nodes) {
+            batchSizes.add(nodes.size());
+            received.addAll(nodes);
+        }
+
+        @Override
+        public int getMaxBatchSize() {
+            return maxBatchSize;
+        }
+
+        @Override
+        public long getMaxBatchLatencyMillis() {
+            return maxLatency;
+        }
+    }
+
+    @Test
+    public void testBatchedDelivery() throws Exception {
+        List<FlowNode> nodes = nodes().subList(0, 25);
+        GraphListenerDispatcher dispatcher = new GraphListenerDispatcher();
+        BatchRecordingListener batched = new BatchRecordingListener(10, 60000);
+        dispatcher.addListener(batched);
+
+        for (FlowNode f : nodes) {
+            dispatcher.fire(f);
+        }
+        // Full batches go out right away, the remainder waits for more nodes or the latency to expire
+        long deadline = System.currentTimeMillis() + 30000;
+        while (batched.received.size() < 20 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(nodes.subList(0, 20), batched.received);
+        Assert.assertEquals(Arrays.asList(10, 10), batched.batchSizes);
+        Assert.assertEquals(5, dispatcher.getQueueDepth());
+        Thread.sleep(200);  // The partial batch stays queued until the latency expires
+        Assert.assertEquals(Arrays.asList(10, 10), batched.batchSizes);
+        Assert.assertEquals(5, dispatcher.getQueueDepth());
+
+        // Without latency, whatever is queued is delivered immediately
+        BatchRecordingListener eager = new BatchRecordingListener(10, 0);
+        dispatcher.addListener(eager);
+        dispatcher.fire(nodes.get(0));
+        deadline = System.currentTimeMillis() + 30000;
+        while (eager.received.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(Collections.singletonList(nodes.get(0)), eager.received);
+    }
+
+    @Test
+    public void testSlowListenerDropsEvents() throws Exception {
+        List<FlowNode> nodes = nodes();
+        int oldCapacity = GraphListenerDispatcher.QUEUE_CAPACITY;
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            GraphListenerDispatcher.QUEUE_CAPACITY = 5;
+            GraphListenerDispatcher dispatcher = new GraphListenerDispatcher();
+            RecordingListener slow = new RecordingListener() {
+                @Override
+                public void onNewHead(FlowNode node) {
+                    blocked.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                    super.onNewHead(node);
+                }
+            };
+            dispatcher.addListener(slow);
+
+            dispatcher.fire(nodes.get(0));
+            Assert.assertTrue(blocked.await(30, TimeUnit.SECONDS));  // First event taken off the queue, listener now stuck
+            for (int i = 1; i <= 10; i++) {
+                dispatcher.fire(nodes.get(i));  // Never blocks
+            }
+            Assert.assertEquals(5, dispatcher.getQueueDepth());
+            Assert.assertEquals(5, dispatcher.getDroppedEvents());
+
+            release.countDown();
+            Assert.assertTrue(dispatcher.awaitIdle(30, TimeUnit.SECONDS));
+            Assert.assertEquals(nodes.subList(0, 6), slow.received);
+        } finally {
+            release.countDown();
+            GraphListenerDispatcher.QUEUE_CAPACITY = oldCapacity;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.flow;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.hamcrest.CoreMatchers.containsString;
+
+/**
+ * Tests for {@link StashManager}
+ */
+public class StashManagerTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @After
+    public void reset() {
+        StashManager.CONTENT_ADDRESSED = false;
+        StashManager.SHARDS = 1;
+        StashManager.INCREMENTAL_UNSTASH = false;
+    }
+
+    @Test
+    public void testContentAddressed() throws Exception {
+        StashManager.CONTENT_ADDRESSED = true;
+        WorkflowJob job = r.jenkins.createProject(WorkflowJob.class, "p");
+        job.setDefinition(new CpsFlowDefinition("echo 'hello'"));
+        WorkflowRun b1 = r.assertBuildStatusSuccess(job.scheduleBuild2(0));
+        WorkflowRun b2 = r.assertBuildStatusSuccess(job.scheduleBuild2(0));
+
+        FilePath ws = new FilePath(tmp.newFolder("ws"));
+        ws.child("a.txt").write("same", "UTF-8");
+        ws.child("sub/b.txt").write("other", "UTF-8");
+        ws.child("sub/c d.txt").write("same", "UTF-8");
+        StashManager.stash(b1, "files", ws, TaskListener.NULL, null, null, true);
+        StashManager.stash(b2, "files", ws, TaskListener.NULL, "sub/**", null, true);
+
+        Map<String,String> all = new TreeMap<String,String>();
+        all.put("a.txt", "same");
+        all.put("sub/b.txt", "other");
+        all.put("sub/c d.txt", "same");
+        Assert.assertEquals(all, StashManager.stashesOf(b1).get("files"));
+        Assert.assertEquals(2, countBlobs(job)); // identical files and stashes share storage
+
+        FilePath restored = new FilePath(tmp.newFolder("restored"));
+        StashManager.unstash(b1, "files", restored, TaskListener.NULL);
+        Assert.assertEquals("same", restored.child("a.txt").readToString());
+        Assert.assertEquals("other", restored.child("sub/b.txt").readToString());
+        Assert.assertEquals("same", restored.child("sub/c d.txt").readToString());
+
+        WorkflowRun b3 = r.assertBuildStatusSuccess(job.scheduleBuild2(0));
+        StashManager.copyAll(b1, b3);
+        StashManager.clearAll(b1);
+        StashManager.clearAll(b2);
+        Assert.assertEquals(2, countBlobs(job)); // still used by the copy
+        Assert.assertEquals(all, StashManager.stashesOf(b3).get("files"));
+        StashManager.clearAll(b3);
+        Assert.assertEquals(0, countBlobs(job));
+    }
+
+    @Test
+    public void testDeletedBuildReleasesBlobs() throws Exception {
+        StashManager.CONTENT_ADDRESSED = true;
+        WorkflowJob job = r.jenkins.createProject(WorkflowJob.class, "p");
+        job.setDefinition(new CpsFlowDefinition("echo 'hello'"));
+        WorkflowRun b = r.assertBuildStatusSuccess(job.scheduleBuild2(0));
+        FilePath ws = new FilePath(tmp.newFolder("ws"));
+        ws.child("a.txt").write("a", "UTF-8");
+        StashManager.stash(b, "kept", ws, TaskListener.NULL, null, null, true); // as if StashBehavior kept it
+        Assert.assertEquals(1, countBlobs(job));
+        b.delete();
+        Assert.assertEquals(0, countBlobs(job));
+    }
+
+    @Test
+    public void testCodecs() throws Exception {
+        WorkflowJob job = r.jenkins.createProject(WorkflowJob.class, "p");
+        job.setDefinition(new CpsFlowDefinition("echo 'hello'"));
+        WorkflowRun b = r.assertBuildStatusSuccess(job.scheduleBuild2(0));
+        FilePath ws = new FilePath(tmp.newFolder("ws"));
+        ws.child("x.txt").write("contents", "UTF-8");
+        File stashes = new File(b.getRootDir(), "stashes");
+        for (StashManager.Codec codec : StashManager.Codec.values()) {
+            StashManager.stash(b, "s", ws, TaskListener.NULL, null, null, true, codec);
+            Assert.assertTrue(new File(stashes, "s" + codec.getSuffix()).isFile());
+            Assert.assertEquals(1, stashes.list().length); // any previous format was replaced
+            Assert.assertEquals(Collections.singletonMap("x.txt", "contents"), StashManager.stashesOf(b).get("s"));
+            FilePath restored = new FilePath(tmp.newFolder("restored-" + codec));
+            StashManager.unstash(b, "s", restored, TaskListener.NULL);
+            Assert.assertEquals("contents", restored.child("x.txt").readToString());
+        }
+    }
+
+    @Test
+    public void testSharded() throws Exception {
+        StashManager.SHARDS = 3;
+        WorkflowJob job = r.jenkins.createProject(WorkflowJob.class, "p");
+        job.setDefinition(new CpsFlowDefinition("echo 'hello'"));
+        WorkflowRun b = r.assertBuildStatusSuccess(job.scheduleBuild2(0));
+        FilePath ws = new FilePath(tmp.newFolder("ws"));
+        Map<String,String> files = new TreeMap<String,String>();
+        for (int i = 0; i < 10; i++) {
+            String path = "dir" + (i % 2) + "/f" + i + ".txt";
+            String contents = StringUtils.repeat("x", i * 100);
+            ws.child(path).write(contents, "UTF-8");
+            files.put(path, contents);
+        }
+        StashManager.stash(b, "s", ws, TaskListener.NULL, null, null, true);
+        File parts = new File(b.getRootDir(), "stashes/s.parts");
+        Assert.assertEquals(3, parts.list().length);
+        Assert.assertEquals(files, StashManager.stashesOf(b).get("s"));
+        FilePath restored = new FilePath(tmp.newFolder("restored"));
+        StashManager.unstash(b, "s", restored, TaskListener.NULL);
+        for (Map.Entry<String,String> e : files.entrySet()) {
+            Assert.assertEquals(e.getValue(), restored.child(e.getKey()).readToString());
+        }
+
+        StashManager.SHARDS = 1;
+        StashManager.stash(b, "s", ws, TaskListener.NULL, null, null, true);
+        Assert.assertFalse(parts.exists());
+        Assert.assertEquals(files, StashManager.stashesOf(b).get("s"));
+    }
+
+    @Test
+    public void testDelta() throws Exception {
+        WorkflowJob job = r.jenkins.createProject(WorkflowJob.class, "p");
+        job.setDefinition(new CpsFlowDefinition("echo 'hello'"));
+        WorkflowRun b = r.assertBuildStatusSuccess(job.scheduleBuild2(0));
+        FilePath ws = new FilePath(tmp.newFolder("ws"));
+        ws.child("unchanged.txt").write("unchanged", "UTF-8");
+        ws.child("changed.txt").write("before", "UTF-8");
+        StashManager.stashDelta(b, "s", ws, TaskListener.NULL, null, null, true, "s"); // no base yet
+        Assert.assertEquals(2, countBlobs(job));
+
+        ws.child("changed.txt").write("after", "UTF-8");
+        ws.child("changed.txt").touch(System.currentTimeMillis() + 10000);
+        ws.child("added.txt").write("added", "UTF-8");
+        StashManager.stashDelta(b, "s", ws, TaskListener.NULL, null, null, true, "s");
+        Assert.assertEquals(3, countBlobs(job)); // "before" was released along with the old manifest
+
+        FilePath restored = new FilePath(tmp.newFolder("restored"));
+        StashManager.unstash(b, "s", restored, TaskListener.NULL);
+        Assert.assertEquals("unchanged", restored.child("unchanged.txt").readToString());
+        Assert.assertEquals("after", restored.child("changed.txt").readToString());
+        Assert.assertEquals("added", restored.child("added.txt").readToString());
+
+        StashManager.stashDelta(b, "copy", ws, TaskListener.NULL, null, null, true, "s");
+        Assert.assertEquals(3, countBlobs(job));
+        StashManager.clearAll(b);
+        Assert.assertEquals(0, countBlobs(job));
+    }
+
+    @Test
+    public void testIncrementalUnstash() throws Exception {
+        StashManager.CONTENT_ADDRESSED = true;
+        StashManager.INCREMENTAL_UNSTASH = true;
+        WorkflowJob job = r.jenkins.createProject(WorkflowJob.class, "p");
+        job.setDefinition(new CpsFlowDefinition("echo 'hello'"));
+        WorkflowRun b = r.assertBuildStatusSuccess(job.scheduleBuild2(0));
+        FilePath ws = new FilePath(tmp.newFolder("ws"));
+        ws.child("a.txt").write("a", "UTF-8");
+        ws.child("b.txt").write("b", "UTF-8");
+        ws.child("c.txt").write("c", "UTF-8");
+        StashManager.stash(b, "s", ws, TaskListener.NULL, null, null, true);
+
+        FilePath restored = new FilePath(tmp.newFolder("restored"));
+        StashManager.unstash(b, "s", restored, TaskListener.NULL);
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        StashManager.unstash(b, "s", restored, new StreamTaskListener(log));
+        Assert.assertThat(log.toString(), containsString("Unstashing 0 file(s), 3 already up to date"));
+
+        restored.child("a.txt").delete();
+        restored.child("b.txt").write("B", "UTF-8");
+        restored.child("b.txt").touch(System.currentTimeMillis() + 10000); // same size, another time
+        restored.child("c.txt").write("cc", "UTF-8");
+        log.reset();
+        StashManager.unstash(b, "s", restored, new StreamTaskListener(log));
+        Assert.assertThat(log.toString(), containsString("Unstashing 3 file(s), 0 already up to date"));
+        Assert.assertEquals("a", restored.child("a.txt").readToString());
+        Assert.assertEquals("b", restored.child("b.txt").readToString());
+        Assert.assertEquals("c", restored.child("c.txt").readToString());
+    }
+
+    private static int countBlobs(WorkflowJob job) {
+        File dir = new File(job.getRootDir(), "stash-blobs");
+        if (!dir.isDirectory()) {
+            return 0;
+        }
+        int count = 0;
+        for (File f : FileUtils.listFiles(dir, null, true)) {
+            if (f.getName().matches("[0-9a-f]{64}")) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
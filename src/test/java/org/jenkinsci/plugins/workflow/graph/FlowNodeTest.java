@@ -0,0 +1,161 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.graph;
+
+import hudson.model.Action;
+import org.jenkinsci.plugins.workflow.actions.LabelAction;
+import org.jenkinsci.plugins.workflow.actions.ThreadNameAction;
+import org.jenkinsci.plugins.workflow.graphanalysis.SyntheticFlowGraph;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Tests for action storage on {@link FlowNode}, using in-memory graphs
+ */
+public class FlowNodeTest {
+
+    private FlowNode node;
+
+    @Before
+    public void setUp() throws Exception {
+        SyntheticFlowGraph graph = SyntheticFlowGraph.create(2, 0, 1);
+        node = graph.getExecution().getNode("3");
+        Assert.assertTrue(node.getActions().isEmpty());
+    }
+
+    /** Every way of changing the actions must be seen by the next {@link FlowNode#getPersistentAction(Class)} */
+    @Test
+    public void persistentActionLookupAfterChanges() throws Exception {
+        Assert.assertNull(node.getPersistentAction(LabelAction.class));
+
+        LabelAction first = new LabelAction("first");
+        node.addAction(first);
+        Assert.assertSame(first, node.getPersistentAction(LabelAction.class));
+        Assert.assertSame(first, node.getPersistentAction(LabelAction.class));
+
+        // Looking up another type in between must not lose track of changes
+        Assert.assertNull(node.getPersistentAction(ThreadNameAction.class));
+        LabelAction second = new LabelAction("second");
+        node.getActions().add(0, second);
+        Assert.assertSame(second, node.getPersistentAction(LabelAction.class));
+
+        LabelAction third = new LabelAction("third");
+        node.getActions().set(0, third);
+        Assert.assertSame(third, node.getPersistentAction(LabelAction.class));
+
+        node.getActions().remove(third);
+        Assert.assertSame(first, node.getPersistentAction(LabelAction.class));
+
+        node.getActions().remove(0);
+        Assert.assertNull(node.getPersistentAction(LabelAction.class));
+
+        node.getActions().add(second);
+        Assert.assertSame(second, node.getPersistentAction(LabelAction.class));
+    }
+
+    @Test
+    public void actionListContract() throws Exception {
+        LabelAction a = new LabelAction("a"), b = new LabelAction("b"), c = new LabelAction("c"), d = new LabelAction("d");
+        List<Action> actions = node.getActions();
+        actions.add(b);
+        actions.add(0, a);
+        actions.add(2, d);
+        actions.add(2, c);
+        Assert.assertEquals(Arrays.<Action>asList(a, b, c, d), node.getActions());
+        // Views see changes made through other views
+        Assert.assertEquals(4, actions.size());
+        Assert.assertSame(c, actions.get(2));
+
+        Assert.assertSame(b, actions.set(1, d));
+        Assert.assertEquals(Arrays.<Action>asList(a, d, c, d), node.getActions());
+        Assert.assertSame(d, actions.remove(3));
+        Assert.assertTrue(actions.remove(d));
+        Assert.assertFalse(actions.remove(b));
+        Assert.assertEquals(Arrays.<Action>asList(a, c), node.getActions());
+        Assert.assertEquals(1, actions.indexOf(c));
+        Assert.assertTrue(actions.contains(a));
+    }
+
+    @Test
+    public void actionListOutOfRange() throws Exception {
+        List<Action> actions = node.getActions();
+        actions.add(new LabelAction("only"));
+        assertOutOfRange("get", actions, -1, 1, new IndexedCall() {
+            @Override public void call(List<Action> list, int index) { list.get(index); }
+        });
+        assertOutOfRange("add", actions, -1, 2, new IndexedCall() {
+            @Override public void call(List<Action> list, int index) { list.add(index, new LabelAction("x")); }
+        });
+        assertOutOfRange("set", actions, -1, 1, new IndexedCall() {
+            @Override public void call(List<Action> list, int index) { list.set(index, new LabelAction("x")); }
+        });
+        assertOutOfRange("remove", actions, -1, 1, new IndexedCall() {
+            @Override public void call(List<Action> list, int index) { list.remove(index); }
+        });
+        // Failed calls leave the actions alone
+        Assert.assertEquals(1, node.getActions().size());
+        Assert.assertEquals("only", node.getActions().get(0).getDisplayName());
+    }
+
+    /** Iterators see the actions as they were when created, like those of {@link java.util.concurrent.CopyOnWriteArrayList} */
+    @Test
+    public void actionListIteratorSnapshot() throws Exception {
+        LabelAction a = new LabelAction("a"), b = new LabelAction("b");
+        node.addAction(a);
+        Iterator<Action> it = node.getActions().iterator();
+        node.addAction(b);
+        node.getActions().remove(a);
+        Assert.assertTrue(it.hasNext());
+        Assert.assertSame(a, it.next());
+        try {
+            it.remove();
+            Assert.fail("Should throw UnsupportedOperation exception");
+        } catch (UnsupportedOperationException usoe) {
+            // Passing case
+        }
+        Assert.assertFalse(it.hasNext());
+        Assert.assertEquals(Arrays.<Action>asList(b), node.getActions());
+    }
+
+    private interface IndexedCall {
+        void call(List<Action> list, int index);
+    }
+
+    private static void assertOutOfRange(String message, List<Action> list, int below, int above, IndexedCall call) {
+        for (int index : new int[] {below, above}) {
+            try {
+                call.call(list, index);
+                Assert.fail(message + " should throw IndexOutOfBounds exception for index " + index);
+            } catch (IndexOutOfBoundsException ioobe) {
+                // Passing case
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.graph;
+
+import hudson.init.Terminator;
+import hudson.model.Action;
+import org.jenkinsci.plugins.workflow.actions.LabelAction;
+import org.jenkinsci.plugins.workflow.graphanalysis.SyntheticFlowGraph;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for deferred writes of {@link FlowNode} actions, see {@link FlowNode#DEFER_ACTION_SAVES}
+ */
+public class PendingActionSavesTest {
+
+    private boolean oldDefer;
+    private long oldInterval;
+    private SyntheticFlowGraph.MemoryFlowExecution exec;
+    private SyntheticFlowGraph.MemoryFlowExecution otherExec;
+
+    @Before
+    public void setUp() throws Exception {
+        oldDefer = FlowNode.DEFER_ACTION_SAVES;
+        oldInterval = PendingActionSaves.FLUSH_INTERVAL;
+        FlowNode.DEFER_ACTION_SAVES = true;
+        // Keep the periodic flush out of the way, tests flush explicitly
+        PendingActionSaves.FLUSH_INTERVAL = TimeUnit.HOURS.toMillis(1);
+        PendingActionSaves.flushAll();
+        exec = (SyntheticFlowGraph.MemoryFlowExecution) SyntheticFlowGraph.create(2, 0, 1).getExecution();
+        otherExec = (SyntheticFlowGraph.MemoryFlowExecution) SyntheticFlowGraph.create(2, 0, 1).getExecution();
+    }
+
+    @After
+    public void tearDown() {
+        PendingActionSaves.flushAll();
+        FlowNode.DEFER_ACTION_SAVES = oldDefer;
+        PendingActionSaves.FLUSH_INTERVAL = oldInterval;
+    }
+
+    @Test
+    public void changesAreCoalesced() throws Exception {
+        FlowNode node = exec.getNode("3");
+        LabelAction first = new LabelAction("first"), second = new LabelAction("second");
+        node.addAction(first);
+        node.addAction(second);
+        node.getActions().remove(first);
+        Assert.assertEquals(0, exec.getActionSaves());
+        Assert.assertEquals(1, PendingActionSaves.size());
+        Assert.assertTrue("Nothing written yet", exec.loadActions(node).isEmpty());
+
+        PendingActionSaves.flush(exec);
+        Assert.assertEquals(1, exec.getActionSaves());
+        Assert.assertEquals(0, PendingActionSaves.size());
+        Assert.assertEquals(Collections.<Action>singletonList(second), exec.loadActions(node));
+
+        // Nothing left to write
+        PendingActionSaves.flush(exec);
+        PendingActionSaves.flushAll();
+        Assert.assertEquals(1, exec.getActionSaves());
+
+        // Later changes are queued again
+        node.getActions().set(0, first);
+        Assert.assertEquals(1, PendingActionSaves.size());
+        PendingActionSaves.flushAll();
+        Assert.assertEquals(2, exec.getActionSaves());
+        Assert.assertEquals(Collections.<Action>singletonList(first), exec.loadActions(node));
+    }
+
+    @Test
+    public void flushOnlyWritesThatExecution() throws Exception {
+        FlowNode node = exec.getNode("3"), sameId = otherExec.getNode("3");
+        node.addAction(new LabelAction("mine"));
+        exec.getNode("4").addAction(new LabelAction("mine too"));
+        sameId.addAction(new LabelAction("other"));
+        // Nodes of different executions are kept apart even though their ids are equal
+        Assert.assertEquals(3, PendingActionSaves.size());
+
+        PendingActionSaves.flush(exec);
+        Assert.assertEquals(2, exec.getActionSaves());
+        Assert.assertEquals(0, otherExec.getActionSaves());
+        Assert.assertEquals(1, PendingActionSaves.size());
+        Assert.assertTrue(otherExec.loadActions(sameId).isEmpty());
+    }
+
+    @Test
+    public void explicitSaveClearsPendingChanges() throws Exception {
+        FlowNode node = exec.getNode("3");
+        node.addAction(new LabelAction("saved"));
+        node.save();
+        Assert.assertEquals(1, exec.getActionSaves());
+        PendingActionSaves.flush(exec);
+        Assert.assertEquals("Not written twice", 1, exec.getActionSaves());
+    }
+
+    @Test
+    public void flushAtShutdown() throws Exception {
+        Assert.assertTrue(PendingActionSaves.class.getMethod("flushAtShutdown").isAnnotationPresent(Terminator.class));
+        FlowNode node = exec.getNode("3"), other = otherExec.getNode("4");
+        LabelAction mine = new LabelAction("mine"), theirs = new LabelAction("theirs");
+        node.addAction(mine);
+        other.addAction(theirs);
+
+        PendingActionSaves.flushAtShutdown();
+        Assert.assertEquals(0, PendingActionSaves.size());
+        Assert.assertEquals(Arrays.<Action>asList(mine), exec.loadActions(node));
+        Assert.assertEquals(Arrays.<Action>asList(theirs), otherExec.loadActions(other));
+    }
+
+    @Test
+    public void immediateWritesWhenNotDeferred() throws Exception {
+        FlowNode.DEFER_ACTION_SAVES = false;
+        FlowNode node = exec.getNode("3");
+        node.addAction(new LabelAction("first"));
+        node.addAction(new LabelAction("second"));
+        Assert.assertEquals(2, exec.getActionSaves());
+        Assert.assertEquals(0, PendingActionSaves.size());
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.graphanalysis;
+
+import com.google.common.base.Predicates;
+import com.google.common.collect.Lists;
+import org.jenkinsci.plugins.workflow.actions.LabelAction;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.graph.BlockStartNode;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.Assert;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.BuildWatcher;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Tests for {@link FlowGraphIndex}
+ */
+public class FlowGraphIndexTest {
+
+    @ClassRule
+    public static BuildWatcher buildWatcher = new BuildWatcher();
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+
+    @Test
+    public void testNestedParallels() throws Exception {
+        WorkflowJob job = r.jenkins.createProject(WorkflowJob.class, "Convoluted");
+        job.setDefinition(new CpsFlowDefinition(
+                "echo 'first'\n" +
+                "def steps = [:]\n" +
+                "steps['1'] = {\n" +
+                "    echo 'do 1 stuff'\n" +
+                "}\n" +
+                "steps['2'] = {\n" +
+                "    echo '2a'\n" +
+                "    def nested = [:]\n" +
+                "    nested['2-1'] = {\n" +
+                "        echo 'do 2-1'\n" +
+                "    } \n" +
+                "    nested['2-2'] = {\n" +
+                "        sleep 1\n" +
+                "        echo '2 section 2'\n" +
+                "    }\n" +
+                "    echo '2b'\n" +
+                "    parallel nested\n" +
+                "}\n" +
+                "parallel steps\n" +
+                "echo 'final'"
+        ));
+        // Same structure as FlowScannerTest#testNestedParallelScan
+        WorkflowRun b = r.assertBuildStatusSuccess(job.scheduleBuild2(0));
+        FlowExecution exec = b.getExecution();
+
+        // Queries do not register an index themselves
+        Assert.assertEquals(5, Lists.newArrayList(FlowScanningUtils.fetchEnclosingBlocks(exec.getNode("16"))).size());
+        Assert.assertNull(FlowGraphIndex.getIfRegistered(exec));
+
+        // Built lazily from the persisted graph, as after a restart
+        FlowGraphIndex lazy = FlowGraphIndex.of(exec);
+        Assert.assertSame(lazy, FlowGraphIndex.of(exec));
+        Assert.assertSame(lazy, FlowGraphIndex.getIfRegistered(exec));
+        assertIndex(lazy, exec);
+
+        // Built incrementally as if the listener saw each new head in order
+        List<FlowNode> nodes = new DepthFirstScanner().filteredNodes(exec.getCurrentHeads(), null, Predicates.<FlowNode>alwaysTrue());
+        Collections.sort(nodes, new Comparator<FlowNode>() {
+            @Override
+            public int compare(FlowNode o1, FlowNode o2) {
+                return Integer.valueOf(o1.getId()).compareTo(Integer.valueOf(o2.getId()));
+            }
+        });
+        FlowGraphIndex incremental = new FlowGraphIndex();
+        for (FlowNode f : nodes) {
+            incremental.onNewHead(f);
+        }
+        assertIndex(incremental, exec);
+
+        // Memoized lookups give the same results as walking back through the graph
+        for (FlowNode f : nodes) {
+            LinearBlockHoppingScanner scanner = new LinearBlockHoppingScanner();
+            scanner.setup(f);
+            Assert.assertEquals("Enclosing blocks of " + f.getId(),
+                    Lists.newArrayList(scanner.filter(FlowScanningUtils.MATCH_BLOCK_START)),
+                    Lists.newArrayList(FlowScanningUtils.fetchEnclosingBlocks(f)));
+        }
+    }
+
+    @Test
+    public void testOpenBlocksWithoutLabels() throws Exception {
+        // Start 2, steps 3-4, parallel 5, first branch 6 with steps 7-8, ...
+        SyntheticFlowGraph graph = SyntheticFlowGraph.create(2, 1, 2);
+        SyntheticFlowGraph.MemoryFlowExecution exec = (SyntheticFlowGraph.MemoryFlowExecution) graph.getExecution();
+        FlowGraphIndex index = new FlowGraphIndex();
+        for (int id = 2; id <= 7; id++) {  // Running inside the first branch
+            index.onNewHead(exec.getNode(Integer.toString(id)));
+        }
+        FlowNode step = exec.getNode("7");
+
+        // None of the open blocks (branch, parallel and flow) has a label: their start nodes are checked once, not on every query
+        exec.nodeLookups.set(0);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertNull(index.getStageName(step));
+            Assert.assertEquals("branch0", index.getParallelBranchName(step));
+        }
+        Assert.assertEquals(3, exec.nodeLookups.get());
+
+        // Reporting a start node again means it may have changed
+        index.onNewHead(exec.getNode("6"));
+        exec.nodeLookups.set(0);
+        Assert.assertNull(index.getStageName(step));
+        Assert.assertNull(index.getStageName(step));
+        Assert.assertEquals(1, exec.nodeLookups.get());
+    }
+
+    @Test
+    public void testOpenBlocksWithLabels() throws Exception {
+        // Start 2, steps 3-4, parallel 5, branch 6 with steps 7-8, nested parallel 9, nested branch 10 with steps 11-12, ...
+        SyntheticFlowGraph graph = SyntheticFlowGraph.create(2, 2, 2);
+        SyntheticFlowGraph.MemoryFlowExecution exec = (SyntheticFlowGraph.MemoryFlowExecution) graph.getExecution();
+        exec.getNode("6").addAction(new LabelAction("outer"));
+        FlowGraphIndex index = new FlowGraphIndex();
+        for (int id = 2; id <= 11; id++) {  // Running inside the nested branch
+            index.onNewHead(exec.getNode(Integer.toString(id)));
+        }
+        FlowNode step = exec.getNode("11");
+        Assert.assertEquals("outer", index.getStageName(step));
+        Assert.assertEquals("branch0", index.getParallelBranchName(step));
+        Assert.assertEquals("10", index.getParallelBranch(step).getStartId());
+
+        // Found values survive the blocks being reported again
+        index.onNewHead(exec.getNode("6"));
+        index.onNewHead(exec.getNode("10"));
+        Assert.assertEquals("outer", index.getStageName(step));
+        Assert.assertEquals("branch0", index.getParallelBranchName(step));
+
+        // A label added later is only seen once its block is reported again, and then takes precedence as the innermost
+        exec.getNode("9").addAction(new LabelAction("inner"));
+        Assert.assertEquals("outer", index.getStageName(step));
+        index.onNewHead(exec.getNode("9"));
+        Assert.assertEquals("inner", index.getStageName(step));
+        Assert.assertEquals("branch0", index.getParallelBranchName(step));
+        Assert.assertEquals("outer", index.getStageName(exec.getNode("8")));
+    }
+
+    private static void assertIndex(FlowGraphIndex index, FlowExecution exec) throws Exception {
+        Assert.assertEquals(Collections.emptyList(), index.getEnclosingBlockIds(exec.getNode("2")));
+        Assert.assertEquals(Arrays.asList("14", "12", "7", "4", "2"), index.getEnclosingBlockIds(exec.getNode("16")));
+        Assert.assertEquals(Arrays.asList("12", "7", "4", "2"), index.getEnclosingBlockIds(exec.getNode("17")));
+        Assert.assertEquals(Arrays.asList("7", "4", "2"), index.getEnclosingBlockIds(exec.getNode("21")));
+        Assert.assertEquals(Arrays.asList("2"), index.getEnclosingBlockIds(exec.getNode("24")));
+        Assert.assertEquals(Arrays.asList("2"), index.getEnclosingBlockIds(exec.getNode("23")));
+
+        List<String> startIds = new ArrayList<String>();
+        for (BlockStartNode start : index.getEnclosingBlocks(exec.getNode("19"))) {
+            startIds.add(start.getId());
+        }
+        Assert.assertEquals(Arrays.asList("15", "12", "7", "4", "2"), startIds);
+
+        Assert.assertEquals("2-1", index.getParallelBranchName(exec.getNode("16")));
+        Assert.assertEquals("2-2", index.getParallelBranchName(exec.getNode("19")));
+        Assert.assertEquals("2", index.getParallelBranchName(exec.getNode("11")));
+        Assert.assertEquals("2", index.getParallelBranchName(exec.getNode("21")));
+        Assert.assertEquals("1", index.getParallelBranchName(exec.getNode("8")));
+        Assert.assertNull(index.getParallelBranchName(exec.getNode("24")));
+        Assert.assertNull(index.getStageName(exec.getNode("16")));
+        Assert.assertEquals(3, index.getBlock((BlockStartNode) exec.getNode("12")).getDepth());
+        Assert.assertTrue(index.getBlock((BlockStartNode) exec.getNode("12")).isClosed());
+    }
+}
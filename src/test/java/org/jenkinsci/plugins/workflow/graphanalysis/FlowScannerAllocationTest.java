@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.graphanalysis;
+
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks that scanning does not allocate per visited node once warmed up, using {@link SyntheticFlowGraph}s.
+ * Allocation per scan for the benchmarks is reported by the GC profiler in the {@code jmh-benchmark} profile.
+ */
+public class FlowScannerAllocationTest {
+
+    /** Counts nodes without allocating */
+    static final class CountingVisitor implements FlowNodeVisitor {
+        int count = 0;
+
+        @Override
+        public boolean visit(@Nonnull FlowNode f) {
+            count++;
+            return true;
+        }
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /** Fewest bytes allocated by any of several scans, to filter out noise */
+    private static long bytesPerScan(@Nonnull AbstractFlowScanner scanner, @Nonnull List<FlowNode> heads, @Nonnull CountingVisitor visitor) {
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            long before = allocatedBytes();
+            scanner.visitAll(heads, visitor);
+            min = Math.min(min, allocatedBytes() - before);
+        }
+        return min;
+    }
+
+    /** Where to start scanning: block hopping from the end node would jump over the whole flow, so it starts from the last node inside */
+    private static List<FlowNode> heads(@Nonnull AbstractFlowScanner scanner, @Nonnull SyntheticFlowGraph graph) {
+        if (scanner instanceof LinearBlockHoppingScanner) {
+            return Collections.singletonList(graph.getHead().getParents().get(0));
+        }
+        return graph.getHeads();
+    }
+
+    private static void assertNoAllocationPerNode(@Nonnull AbstractFlowScanner scanner, boolean bulkActionLoading) {
+        // Same block structure, so only the number of atom nodes differs
+        SyntheticFlowGraph small = SyntheticFlowGraph.create(10, 2, 2, bulkActionLoading);
+        SyntheticFlowGraph large = SyntheticFlowGraph.create(1000, 2, 2, bulkActionLoading);
+        Assert.assertEquals(bulkActionLoading, FlowNode.isBulkActionLoadingSupported(large.getExecution()));  // Scanners prefetch iff supported
+        List<FlowNode> smallHeads = heads(scanner, small);
+        List<FlowNode> largeHeads = heads(scanner, large);
+        CountingVisitor visitor = new CountingVisitor();
+        for (int i = 0; i < 200; i++) {  // Warm up: JIT compilation and lazily created buffers and caches
+            scanner.visitAll(smallHeads, visitor);
+            scanner.visitAll(largeHeads, visitor);
+        }
+
+        visitor.count = 0;
+        scanner.visitAll(smallHeads, visitor);
+        int smallNodes = visitor.count;
+        visitor.count = 0;
+        scanner.visitAll(largeHeads, visitor);
+        int largeNodes = visitor.count;
+        Assert.assertTrue(scanner.getClass().getSimpleName() + " visited nothing", smallNodes > 0);
+        Assert.assertTrue(largeNodes > smallNodes);
+
+        long smallBytes = bytesPerScan(scanner, smallHeads, visitor);
+        long largeBytes = bytesPerScan(scanner, largeHeads, visitor);
+        double bytesPerNode = (double) (largeBytes - smallBytes) / (largeNodes - smallNodes);
+        Assert.assertTrue(scanner.getClass().getSimpleName() + " allocated " + bytesPerNode + " bytes per node: "
+                + smallBytes + " for " + smallNodes + " nodes, " + largeBytes + " for " + largeNodes + " nodes",
+                bytesPerNode < 0.5);
+    }
+
+    @Test
+    public void testNoAllocationPerNode() throws Exception {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        Assume.assumeTrue(((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).isThreadAllocatedMemoryEnabled());
+
+        assertNoAllocationPerNode(new LinearScanner(), false);
+        assertNoAllocationPerNode(new LinearBlockHoppingScanner(), false);
+        assertNoAllocationPerNode(new DepthFirstScanner(), false);
+        assertNoAllocationPerNode(new ForkScanner(), false);
+    }
+
+    /** Once actions are loaded, collecting the window to prefetch must not allocate either */
+    @Test
+    public void testNoAllocationPerNodeWithPrefetching() throws Exception {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        Assume.assumeTrue(((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).isThreadAllocatedMemoryEnabled());
+        Assume.assumeTrue(AbstractFlowScanner.PREFETCH_WINDOW > 0);
+
+        assertNoAllocationPerNode(new LinearScanner(), true);
+        assertNoAllocationPerNode(new LinearBlockHoppingScanner(), true);
+        assertNoAllocationPerNode(new DepthFirstScanner(), true);
+        assertNoAllocationPerNode(new ForkScanner(), true);
+    }
+}
@@ -29,6 +29,8 @@ import com.google.common.base.Predicates;
 import com.google.common.collect.Iterators;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
 import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.graph.BlockEndNode;
+import org.jenkinsci.plugins.workflow.graph.FlowGraphSnapshot;
 import org.jenkinsci.plugins.workflow.graph.FlowGraphWalker;
 import org.jenkinsci.plugins.workflow.graph.FlowNode;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
@@ -40,6 +42,8 @@ import org.junit.Test;
 import org.jvnet.hudson.test.BuildWatcher;
 import org.jvnet.hudson.test.JenkinsRule;
 
+import javax.annotation.Nonnull;
+import java.io.IOException;
 import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -480,4 +484,148 @@ public class FlowScannerTest {
         matches = scanner.filteredNodes(heads, null, MATCH_ECHO_STEP);
         Assert.assertEquals(6, matches.size()); // Commented out since temporarily failing
     }
-}
\ No newline at end of file
+
+    /** Snapshot scanners must give the same results as the equivalent scanners walking the FlowNodes */
+    @Test
+    public void testSnapshotScanners() throws Exception {
+        WorkflowJob job = r.jenkins.createProject(WorkflowJob.class, "Convoluted");
+        job.setDefinition(new CpsFlowDefinition(
+                "echo 'first'\n" +
+                "def steps = [:]\n" +
+                "steps['1'] = {\n" +
+                "    echo 'do 1 stuff'\n" +
+                "}\n" +
+                "steps['2'] = {\n" +
+                "    echo '2a'\n" +
+                "    def nested = [:]\n" +
+                "    nested['2-1'] = {\n" +
+                "        echo 'do 2-1'\n" +
+                "    } \n" +
+                "    nested['2-2'] = {\n" +
+                "        sleep 1\n" +
+                "        echo '2 section 2'\n" +
+                "    }\n" +
+                "    echo '2b'\n" +
+                "    parallel nested\n" +
+                "}\n" +
+                "parallel steps\n" +
+                "echo 'final'"
+        ));
+        // Same structure as testNestedParallelScan
+        WorkflowRun b = r.assertBuildStatusSuccess(job.scheduleBuild2(0));
+        FlowExecution exec = b.getExecution();
+        FlowGraphSnapshot snapshot = FlowGraphSnapshot.of(exec);
+        Assert.assertEquals(23, snapshot.size());
+        Assert.assertEquals(FlowGraphSnapshot.NodeKind.FLOW_END, snapshot.getKind(snapshot.getHeads()[0]));
+        Assert.assertEquals("12", snapshot.getId(snapshot.getBlockStart(snapshot.indexOf("21"))));
+        Assert.assertEquals("21", snapshot.getId(snapshot.getBlockEnd(snapshot.indexOf("12"))));
+        Assert.assertEquals(2, snapshot.getParentCount(snapshot.indexOf("23")));
+        Assert.assertEquals(FlowGraphSnapshot.NONE, snapshot.getFirstParent(snapshot.indexOf("2")));
+
+        DepthFirstScanner dfs = new DepthFirstScanner();
+        dfs.setup(exec.getCurrentHeads());
+        assertSnapshotOrder(dfs, new SnapshotDepthFirstScanner(), snapshot, snapshot.getHeads());
+
+        // Start inside the parallels, with multiple heads
+        int[] innerHeads = {snapshot.indexOf("20"), snapshot.indexOf("17"), snapshot.indexOf("9")};
+        dfs.setup(snapshot.getNodes(innerHeads));
+        assertSnapshotOrder(dfs, new SnapshotDepthFirstScanner(), snapshot, innerHeads);
+
+        LinearScanner linear = new LinearScanner();
+        linear.setup(exec.getNode("19"));
+        assertSnapshotOrder(linear, new SnapshotLinearScanner(), snapshot, new int[]{snapshot.indexOf("19")});
+
+        LinearBlockHoppingScanner hopping = new LinearBlockHoppingScanner();
+        hopping.setup(exec.getNode("24"));
+        assertSnapshotOrder(hopping, new SnapshotLinearBlockHoppingScanner(), snapshot, new int[]{snapshot.indexOf("24")});
+        hopping.setup(exec.getNode("19"));
+        assertSnapshotOrder(hopping, new SnapshotLinearBlockHoppingScanner(), snapshot, new int[]{snapshot.indexOf("19")});
+
+        // Blacklisting
+        SnapshotDepthFirstScanner snapshotScanner = new SnapshotDepthFirstScanner();
+        int[] echoes = snapshotScanner.filteredIndices(snapshot, snapshot.getHeads(), new int[]{snapshot.indexOf("22")}, new SnapshotNodeVisitor() {
+            @Override
+            public boolean visit(@Nonnull FlowGraphSnapshot snapshot, int index) {
+                try {
+                    return MATCH_ECHO_STEP.apply(snapshot.getNode(index));
+                } catch (IOException ioe) {
+                    throw new IllegalStateException(ioe);
+                }
+            }
+        });
+        Assert.assertEquals(3, echoes.length);
+    }
+
+    /** Hopping with stored jump targets must land where hopping block by block does */
+    @Test
+    public void testBlockHoppingJumpTargets() throws Exception {
+        WorkflowJob job = r.jenkins.createProject(WorkflowJob.class, "SiblingBlocks");
+        job.setDefinition(new CpsFlowDefinition(
+                "echo 'first'\n" +
+                "for (int i = 0; i < 5; i++) {\n" +
+                "    retry(1) {\n" +
+                "        retry(1) {\n" +
+                "            echo \"try $i\"\n" +
+                "        }\n" +
+                "    }\n" +
+                "}\n" +
+                "echo 'last'"
+        ));
+        WorkflowRun b = r.assertBuildStatusSuccess(job.scheduleBuild2(0));
+        FlowExecution exec = b.getExecution();
+        FlowNode end = exec.getCurrentHeads().get(0);
+
+        // A non-empty blacklist forces hopping one block at a time; the end node is never reached walking back
+        List<FlowNode> stepping = Collections.singletonList(end);
+        LinearBlockHoppingScanner scanner = new LinearBlockHoppingScanner();
+        for (FlowNode f : new DepthFirstScanner().filteredNodes(exec.getCurrentHeads(), Predicates.<FlowNode>alwaysTrue())) {
+            if (f == end) {
+                continue;
+            }
+            List<FlowNode> jumped = scanner.filteredNodes(Collections.singleton(f), null, Predicates.<FlowNode>alwaysTrue());
+            List<FlowNode> stepped = scanner.filteredNodes(Collections.singleton(f), stepping, Predicates.<FlowNode>alwaysTrue());
+            Assert.assertEquals("Hopping from " + f.getId(), stepped, jumped);
+        }
+
+        // Hopping over the last block skips all its siblings in one go, straight to the first echo
+        FlowNode lastEcho = end.getParents().get(0);
+        FlowNode lastBlockEnd = lastEcho.getParents().get(0);
+        Assert.assertTrue(lastBlockEnd instanceof BlockEndNode);
+        Assert.assertEquals("3", ((BlockEndNode) lastBlockEnd).getJumpTargetId());
+        Assert.assertEquals("", ((BlockEndNode) end).getJumpTargetId());
+    }
+
+    private static void assertSnapshotOrder(AbstractFlowScanner expected, AbstractSnapshotScanner actual, FlowGraphSnapshot snapshot, int[] heads) {
+        ArrayList<String> expectedIds = new ArrayList<String>();
+        for (FlowNode f : expected) {
+            expectedIds.add(f.getId());
+        }
+        ArrayList<String> actualIds = new ArrayList<String>();
+        actual.setup(snapshot, heads, new int[0]);
+        while (actual.hasNext()) {
+            actualIds.add(snapshot.getId(actual.nextIndex()));
+        }
+        Assert.assertEquals(expectedIds, actualIds);
+    }
+
+    @Test
+    public void testDepthFirstNumericIds() throws Exception {
+        Assert.assertEquals(0, DepthFirstScanner.numericId("0"));
+        Assert.assertEquals(42, DepthFirstScanner.numericId("42"));
+        Assert.assertEquals(999999999, DepthFirstScanner.numericId("999999999"));
+        for (String id : Arrays.asList("", "01", "-1", "+1", "1a", "1234567890", "node-3")) {
+            Assert.assertEquals(id, -1, DepthFirstScanner.numericId(id));
+        }
+
+        // Same visit order either way, but numeric ids never go in the HashSet
+        SyntheticFlowGraph graph = SyntheticFlowGraph.create(3, 3, 3);
+        DepthFirstScanner plain = new DepthFirstScanner();
+        DepthFirstScanner numeric = new DepthFirstScanner();
+        numeric.setNumericIds(true);
+        List<FlowNode> expected = plain.filteredNodes(graph.getHeads(), Predicates.<FlowNode>alwaysTrue());
+        Assert.assertFalse(plain.visited.isEmpty());
+        Assert.assertEquals(graph.size(), expected.size());
+        Assert.assertEquals(expected, numeric.filteredNodes(graph.getHeads(), Predicates.<FlowNode>alwaysTrue()));
+        Assert.assertTrue(numeric.visited.isEmpty());
+    }
+}
@@ -51,6 +51,7 @@ import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
@@ -663,4 +664,70 @@ public class ForkScannerTest {
         testParallelFindsLast(jobPauseSecond, "wait2");
         testParallelFindsLast(jobPauseMiddle, "wait3");
     }
+
+    /** Loading branches concurrently must not change what is visited or in which order, see {@link #NESTED_PARALLEL_RUN} */
+    @Test
+    public void testConcurrentBranchLoading() throws Exception {
+        ForkScanner.setParallelStartPredicate(PARALLEL_START_PREDICATE);
+        FlowExecution exec = NESTED_PARALLEL_RUN.getExecution();
+
+        ForkScanner scanner = new ForkScanner();
+        scanner.setup(exec.getCurrentHeads());
+        TestVisitor sequential = new TestVisitor();
+        scanner.visitSimpleChunks(sequential, new BlockChunkFinder());
+        List<FlowNode> sequentialNodes = scanner.filteredNodes(exec.getCurrentHeads(), Predicates.<FlowNode>alwaysTrue());
+
+        int oldThreshold = ForkScanner.CONCURRENT_BRANCH_THRESHOLD;
+        try {
+            ForkScanner.CONCURRENT_BRANCH_THRESHOLD = 2;
+            scanner = new ForkScanner();
+            scanner.setLoadBranchesConcurrently(true);
+            scanner.setup(exec.getCurrentHeads());
+            TestVisitor concurrent = new TestVisitor();
+            scanner.visitSimpleChunks(concurrent, new BlockChunkFinder());
+            Assert.assertEquals(sequential.calls, concurrent.calls);
+            Assert.assertEquals(sequentialNodes, scanner.filteredNodes(exec.getCurrentHeads(), Predicates.<FlowNode>alwaysTrue()));
+
+            // Blacklisting the end of branch 1 stops both visiting and loading there
+            scanner.setup(exec.getCurrentHeads(), Arrays.asList(exec.getNode("9")));
+            assertNodeOrder("Blacklisted branch", scanner, "25", "24", "23", "22", "21", "20", "19", "18", "15", "17", "16", "14", "12", "11", "10", "7", "4", "3", "2");
+        } finally {
+            ForkScanner.CONCURRENT_BRANCH_THRESHOLD = oldThreshold;
+        }
+    }
+
+    /** Branches are only loaded in parallel if the execution declares that its storage supports it */
+    @Test
+    public void testConcurrentBranchLoadingFromStorage() throws Exception {
+        SyntheticFlowGraph graph = SyntheticFlowGraph.create(3, 2, 4);
+        SyntheticFlowGraph.MemoryFlowExecution exec = (SyntheticFlowGraph.MemoryFlowExecution) graph.getExecution();
+        int oldThreshold = ForkScanner.CONCURRENT_BRANCH_THRESHOLD;
+        try {
+            ForkScanner.setParallelStartPredicate(SyntheticFlowGraph.PARALLEL_START_PREDICATE);
+            List<FlowNode> sequentialNodes = new ForkScanner().filteredNodes(graph.getHeads(), Predicates.<FlowNode>alwaysTrue());
+            ForkScanner.CONCURRENT_BRANCH_THRESHOLD = 2;
+
+            // Without support, all nodes are loaded by the scanning thread
+            graph.unloadParents();
+            exec.loadingThreads.clear();
+            ForkScanner scanner = new ForkScanner();
+            scanner.setLoadBranchesConcurrently(true);
+            Assert.assertEquals(sequentialNodes, scanner.filteredNodes(graph.getHeads(), Predicates.<FlowNode>alwaysTrue()));
+            Assert.assertEquals(Collections.singleton(Thread.currentThread()), exec.loadingThreads);
+
+            // With support, branches are loaded by other threads, and visited in the same order
+            exec.concurrentNodeLoading = true;
+            graph.unloadParents();
+            exec.loadingThreads.clear();
+            scanner = new ForkScanner();
+            scanner.setLoadBranchesConcurrently(true);
+            Assert.assertEquals(sequentialNodes, scanner.filteredNodes(graph.getHeads(), Predicates.<FlowNode>alwaysTrue()));
+            Set<Thread> otherThreads = new HashSet<Thread>(exec.loadingThreads);
+            otherThreads.remove(Thread.currentThread());
+            Assert.assertFalse("No branch was loaded concurrently", otherThreads.isEmpty());
+        } finally {
+            ForkScanner.CONCURRENT_BRANCH_THRESHOLD = oldThreshold;
+            ForkScanner.setParallelStartPredicate(PARALLEL_START_PREDICATE);
+        }
+    }
 }
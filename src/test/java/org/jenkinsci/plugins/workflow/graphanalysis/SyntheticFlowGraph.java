@@ -0,0 +1,357 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.graphanalysis;
+
+import com.google.common.base.Predicate;
+import hudson.model.Action;
+import hudson.model.Result;
+import jenkins.model.CauseOfInterruption;
+import org.acegisecurity.Authentication;
+import org.jenkinsci.plugins.workflow.actions.ThreadNameAction;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
+import org.jenkinsci.plugins.workflow.flow.GraphListener;
+import org.jenkinsci.plugins.workflow.graph.AtomNode;
+import org.jenkinsci.plugins.workflow.graph.BlockEndNode;
+import org.jenkinsci.plugins.workflow.graph.BlockStartNode;
+import org.jenkinsci.plugins.workflow.graph.FlowEndNode;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.graph.FlowStartNode;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds flow graphs of arbitrary size in memory, without Jenkins or a real {@link FlowExecution}, for benchmarks and tests.
+ *
+ * <p>Each block holds {@code stepsPerBlock} atom nodes before and after its nested block.
+ * Nested blocks are parallels with {@code parallelWidth} branches, or plain blocks if the width is 1,
+ * down to {@code depth} levels. Branch starts carry a {@link ThreadNameAction} like real parallel branches.
+ *
+ * <p>{@link ForkScanner} only recognizes parallel starts via {@link ForkScanner#setParallelStartPredicate(Predicate)},
+ * so users of the graph should install {@link #PARALLEL_START_PREDICATE} first.
+ */
+public final class SyntheticFlowGraph {
+
+    /** Matches the parallel start nodes of synthetic graphs */
+    public static final Predicate<FlowNode> PARALLEL_START_PREDICATE = new Predicate<FlowNode>() {
+        @Override
+        public boolean apply(@CheckForNull FlowNode input) {
+            return input instanceof ParallelStartNode;
+        }
+    };
+
+    private final int stepsPerBlock;
+    private final int parallelWidth;
+    private final MemoryFlowExecution exec;
+    private int nextId = 2;  // Matches real flows, where the start node is 2
+
+    private SyntheticFlowGraph(int stepsPerBlock, int parallelWidth, boolean bulkActionLoading) {
+        this.stepsPerBlock = stepsPerBlock;
+        this.parallelWidth = parallelWidth;
+        this.exec = bulkActionLoading ? new BulkLoadingFlowExecution() : new MemoryFlowExecution();
+    }
+
+    /**
+     * Build a complete flow, from the start node to the end node
+     * @param stepsPerBlock Number of atom nodes before and after each nested block
+     * @param depth Levels of nested blocks
+     * @param parallelWidth Branches per nested block, or 1 for plain blocks
+     */
+    @Nonnull
+    public static SyntheticFlowGraph create(int stepsPerBlock, int depth, int parallelWidth) {
+        return create(stepsPerBlock, depth, parallelWidth, false);
+    }
+
+    /**
+     * Build a complete flow, optionally with an execution supporting bulk action loading, so that scanners prefetch actions
+     * @param stepsPerBlock Number of atom nodes before and after each nested block
+     * @param depth Levels of nested blocks
+     * @param parallelWidth Branches per nested block, or 1 for plain blocks
+     * @param bulkActionLoading True if the execution should override {@link FlowExecution#loadActions(Collection)}
+     */
+    @Nonnull
+    public static SyntheticFlowGraph create(int stepsPerBlock, int depth, int parallelWidth, boolean bulkActionLoading) {
+        if (stepsPerBlock < 0 || depth < 0 || parallelWidth < 1) {
+            throw new IllegalArgumentException("Invalid graph shape: steps " + stepsPerBlock + ", depth " + depth + ", width " + parallelWidth);
+        }
+        SyntheticFlowGraph graph = new SyntheticFlowGraph(stepsPerBlock, parallelWidth, bulkActionLoading);
+        FlowStartNode start = graph.add(new FlowStartNode(graph.exec, graph.nextId()));
+        FlowNode tail = graph.appendBlock(start, depth);
+        graph.exec.head = graph.add(new FlowEndNode(graph.exec, graph.nextId(), start, Result.SUCCESS, tail));
+        return graph;
+    }
+
+    @Nonnull
+    public FlowExecution getExecution() {
+        return exec;
+    }
+
+    /** The end node of the flow */
+    @Nonnull
+    public FlowNode getHead() {
+        return exec.head;
+    }
+
+    @Nonnull
+    public List<FlowNode> getHeads() {
+        return exec.getCurrentHeads();
+    }
+
+    /** Total number of nodes */
+    public int size() {
+        return exec.nodes.size();
+    }
+
+    /**
+     * Drop the in-memory parent references of all nodes, as if they had just been read back from storage,
+     * so that {@link FlowNode#getParents()} loads the parents through {@link FlowExecution#getNode(String)} again.
+     */
+    public void unloadParents() {
+        try {
+            Field parents = FlowNode.class.getDeclaredField("parents");
+            parents.setAccessible(true);
+            for (FlowNode node : exec.nodes.values()) {
+                parents.set(node, null);
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private String nextId() {
+        return Integer.toString(nextId++);
+    }
+
+    private <T extends FlowNode> T add(T node) {
+        exec.nodes.put(node.getId(), node);
+        return node;
+    }
+
+    private FlowNode appendSteps(FlowNode tail, int count) {
+        for (int i = 0; i < count; i++) {
+            tail = add(new StepNode(exec, nextId(), tail));
+        }
+        return tail;
+    }
+
+    private FlowNode appendBlock(FlowNode tail, int depth) {
+        tail = appendSteps(tail, stepsPerBlock);
+        if (depth > 0) {
+            if (parallelWidth > 1) {
+                ParallelStartNode parallelStart = add(new ParallelStartNode(exec, nextId(), tail));
+                FlowNode[] branchEnds = new FlowNode[parallelWidth];
+                for (int i = 0; i < parallelWidth; i++) {
+                    BlockStartNode branchStart = add(new PlainStartNode(exec, nextId(), parallelStart));
+                    branchStart.addAction(new BranchName("branch" + i));
+                    FlowNode branchTail = appendBlock(branchStart, depth - 1);
+                    branchEnds[i] = add(new PlainEndNode(exec, nextId(), branchStart, branchTail));
+                }
+                tail = add(new PlainEndNode(exec, nextId(), parallelStart, branchEnds));
+            } else {
+                BlockStartNode blockStart = add(new PlainStartNode(exec, nextId(), tail));
+                FlowNode blockTail = appendBlock(blockStart, depth - 1);
+                tail = add(new PlainEndNode(exec, nextId(), blockStart, blockTail));
+            }
+            tail = appendSteps(tail, stepsPerBlock);
+        }
+        return tail;
+    }
+
+    static final class StepNode extends AtomNode {
+        StepNode(FlowExecution exec, String id, FlowNode... parents) {
+            super(exec, id, parents);
+        }
+
+        @Override
+        protected String getTypeDisplayName() {
+            return "Step";
+        }
+    }
+
+    static class PlainStartNode extends BlockStartNode {
+        PlainStartNode(FlowExecution exec, String id, FlowNode... parents) {
+            super(exec, id, parents);
+        }
+
+        @Override
+        protected String getTypeDisplayName() {
+            return "Block start";
+        }
+    }
+
+    static final class ParallelStartNode extends PlainStartNode {
+        ParallelStartNode(FlowExecution exec, String id, FlowNode... parents) {
+            super(exec, id, parents);
+        }
+
+        @Override
+        protected String getTypeDisplayName() {
+            return "Parallel start";
+        }
+    }
+
+    static final class PlainEndNode extends BlockEndNode<BlockStartNode> {
+        PlainEndNode(FlowExecution exec, String id, BlockStartNode start, FlowNode... parents) {
+            super(exec, id, start, parents);
+        }
+
+        @Override
+        protected String getTypeDisplayName() {
+            return "Block end";
+        }
+    }
+
+    static final class BranchName implements ThreadNameAction {
+        private final String name;
+
+        BranchName(String name) {
+            this.name = name;
+        }
+
+        @Nonnull
+        @Override
+        public String getThreadName() {
+            return name;
+        }
+
+        @Override
+        public String getIconFileName() {
+            return null;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Branch: " + name;
+        }
+
+        @Override
+        public String getUrlName() {
+            return null;
+        }
+    }
+
+    /** Holds nodes and their actions in memory, everything else is unsupported */
+    public static class MemoryFlowExecution extends FlowExecution {
+        final Map<String, FlowNode> nodes = new ConcurrentHashMap<String, FlowNode>();
+        final Map<String, List<Action>> actions = new ConcurrentHashMap<String, List<Action>>();
+        FlowNode head;
+        /** Number of calls to {@link #getNode}, for tests checking how often nodes are looked up */
+        final AtomicInteger nodeLookups = new AtomicInteger();
+        /** Threads which called {@link #getNode}, for tests checking where nodes are loaded */
+        final Set<Thread> loadingThreads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+        /** Number of calls to {@link #saveActions} */
+        private final AtomicInteger actionSaves = new AtomicInteger();
+        /** Whether to declare {@link #isConcurrentNodeLoadingSupported()} */
+        volatile boolean concurrentNodeLoading = false;
+
+        @Override
+        public void start() throws IOException {
+            // Already complete
+        }
+
+        @Override
+        public FlowExecutionOwner getOwner() {
+            return FlowExecutionOwner.dummyOwner();
+        }
+
+        @Override
+        public List<FlowNode> getCurrentHeads() {
+            return Collections.singletonList(head);
+        }
+
+        @Override
+        public boolean isCurrentHead(FlowNode n) {
+            return n.equals(head);
+        }
+
+        @Override
+        public void interrupt(Result r, CauseOfInterruption... causes) throws IOException, InterruptedException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void addListener(GraphListener listener) {
+            // Graph never changes
+        }
+
+        @Override
+        public FlowNode getNode(String id) throws IOException {
+            nodeLookups.incrementAndGet();
+            loadingThreads.add(Thread.currentThread());
+            return nodes.get(id);
+        }
+
+        @Override
+        public boolean isConcurrentNodeLoadingSupported() {
+            return concurrentNodeLoading;
+        }
+
+        @Override
+        public Authentication getAuthentication() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<Action> loadActions(FlowNode node) throws IOException {
+            List<Action> stored = actions.get(node.getId());
+            return (stored != null) ? stored : new ArrayList<Action>();
+        }
+
+        @Override
+        public void saveActions(FlowNode node, List<Action> actions) throws IOException {
+            actionSaves.incrementAndGet();
+            this.actions.put(node.getId(), actions);
+        }
+
+        /** Number of times actions were written, for tests checking how often nodes are saved */
+        public int getActionSaves() {
+            return actionSaves.get();
+        }
+    }
+
+    /** Loads actions for a batch of nodes in one go, as storage reading many nodes at once would */
+    static final class BulkLoadingFlowExecution extends MemoryFlowExecution {
+        @Override
+        public Map<FlowNode, List<Action>> loadActions(Collection<FlowNode> nodes) throws IOException {
+            Map<FlowNode, List<Action>> loaded = new HashMap<FlowNode, List<Action>>(nodes.size() * 2);
+            for (FlowNode node : nodes) {
+                loaded.put(node, loadActions(node));
+            }
+            return loaded;
+        }
+    }
+}